@@ -0,0 +1,41 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// How the rasterizer's 8x8 blocks turned out: rejected (outside an edge, no pixel looked at),
+// accepted (inside all edges, filled without inside tests) or partial (tested pixel by pixel).
+// Small triangles, which the rasterizer draws without block tests, are not counted.
+// Safe to share between the threads of a TileRasterizer.
+public class BlockStatistics {
+    private final LongAdder rejectedBlocks = new LongAdder();
+    private final LongAdder acceptedBlocks = new LongAdder();
+    private final LongAdder partialBlocks = new LongAdder();
+
+    void record(long rejected, long accepted, long partial) {
+        rejectedBlocks.add(rejected);
+        acceptedBlocks.add(accepted);
+        partialBlocks.add(partial);
+    }
+
+    public void reset() {
+        rejectedBlocks.reset();
+        acceptedBlocks.reset();
+        partialBlocks.reset();
+    }
+
+    public long getRejectedBlocks() {
+        return rejectedBlocks.sum();
+    }
+
+    public long getAcceptedBlocks() {
+        return acceptedBlocks.sum();
+    }
+
+    public long getPartialBlocks() {
+        return partialBlocks.sum();
+    }
+
+    // Rejected blocks per accepted block, 0 if none were accepted
+    public double getRejectedPerAccepted() {
+        long accepted = getAcceptedBlocks();
+        return accepted > 0 ? (double) getRejectedBlocks() / accepted : 0.0;
+    }
+}
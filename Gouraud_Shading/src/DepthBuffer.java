@@ -0,0 +1,137 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// Depth per pixel of an image, as 24-bit fixed point: 0 is the nearest depth, FAR the
+// farthest and what a cleared buffer holds. A pixel is drawn when its depth is <= the stored
+// one, so triangles at equal depth still overwrite in draw order.
+//
+// The buffer is also split into 8x8 tiles with the nearest (tileMin) and farthest (tileMax)
+// depth stored in each. A triangle whose nearest point is behind tileMax cannot show in that
+// tile and skips it; one whose farthest point is in front of tileMin passes every depth test
+// there. tileMin is exact; tileMax only ever gets too far, so it is recomputed from the
+// pixels when it is needed after a tile was drawn to.
+public class DepthBuffer {
+    public static final int FAR = 0xFFFFFF;
+    static final int TILE_SHIFT = 3;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    final int width;
+    final int height;
+    final int tilesX;
+    final int[] depth;
+    final int[] tileMin;
+    final int[] tileMax;
+    final boolean[] tileMaxStale;
+
+    // Pixels that passed / failed the depth test, and tiles (rasterizer blocks not outside the
+    // triangle) that were tested / skipped by the tile test, since the last resetStatistics
+    private final LongAdder shadedPixels = new LongAdder();
+    private final LongAdder rejectedPixels = new LongAdder();
+    private final LongAdder testedBlocks = new LongAdder();
+    private final LongAdder culledBlocks = new LongAdder();
+
+    public DepthBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        int tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        this.depth = new int[width * height];
+        this.tileMin = new int[tilesX * tilesY];
+        this.tileMax = new int[tilesX * tilesY];
+        this.tileMaxStale = new boolean[tilesX * tilesY];
+        clear();
+    }
+
+    // Depth in [0, 1] (clamped) as fixed point
+    public static int toFixed(float z) {
+        if (!(z > 0)) {
+            return 0;
+        }
+        return z >= 1 ? FAR : Math.round(z * FAR);
+    }
+
+    public void clear() {
+        Arrays.fill(depth, FAR);
+        Arrays.fill(tileMin, FAR);
+        Arrays.fill(tileMax, FAR);
+        Arrays.fill(tileMaxStale, false);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth(int x, int y) {
+        return depth[y * width + x];
+    }
+
+    // Farthest depth in the tile, brought up to date if it was drawn to
+    int maxDepth(int tile) {
+        if (tileMaxStale[tile]) {
+            int minX = (tile % tilesX) << TILE_SHIFT;
+            int minY = (tile / tilesX) << TILE_SHIFT;
+            int maxX = Math.min(minX + TILE_SIZE, width);
+            int maxY = Math.min(minY + TILE_SIZE, height);
+            int max = 0;
+            for (int y = minY; y < maxY; y++) {
+                for (int i = y * width + minX, end = y * width + maxX; i < end; i++) {
+                    max = Math.max(max, depth[i]);
+                }
+            }
+            tileMax[tile] = max;
+            tileMaxStale[tile] = false;
+        }
+        return tileMax[tile];
+    }
+
+    void record(long shaded, long rejected, long tested, long culled) {
+        shadedPixels.add(shaded);
+        rejectedPixels.add(rejected);
+        testedBlocks.add(tested);
+        culledBlocks.add(culled);
+    }
+
+    public void resetStatistics() {
+        shadedPixels.reset();
+        rejectedPixels.reset();
+        testedBlocks.reset();
+        culledBlocks.reset();
+    }
+
+    public long getShadedPixels() {
+        return shadedPixels.sum();
+    }
+
+    public long getRejectedPixels() {
+        return rejectedPixels.sum();
+    }
+
+    public long getTestedBlocks() {
+        return testedBlocks.sum();
+    }
+
+    public long getCulledBlocks() {
+        return culledBlocks.sum();
+    }
+
+    // Pixels holding a depth nearer than FAR
+    public long getCoveredPixels() {
+        long covered = 0;
+        for (int d : depth) {
+            if (d != FAR) {
+                covered++;
+            }
+        }
+        return covered;
+    }
+
+    // Shaded pixels per covered pixel: 1 means every pixel was shaded once
+    public double getOverdraw() {
+        long covered = getCoveredPixels();
+        return covered > 0 ? (double) getShadedPixels() / covered : 0.0;
+    }
+}
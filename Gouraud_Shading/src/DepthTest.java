@@ -0,0 +1,92 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.math.BigInteger;
+
+// Checks the depths the Z-buffered rasterizer stores against depths worked out per pixel from
+// scratch, for large steeply sloped triangles whose points lie far outside the image (their
+// depth is stepped as a double). Each triangle is drawn over a flat occluder halfway through
+// its depth range, so the tile test has to let through the pixels in front of it.
+// Run with: java DepthTest (exits with 1 if a depth is off)
+public class DepthTest {
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 192;
+    // Stored depths may be this far from the exact one (fixed point units)
+    private static final int TOLERANCE = 1;
+
+    public static void main(String[] args) {
+        int failures = 0;
+
+        // Thin wedges across the image: the depth goes from near to far over a few hundred
+        // pixels or less, while the points are hundreds of thousands of pixels away
+        failures += check(-300000, -300000, 0f, 300000, 300000, 0f, 300000, 299000, 1f);
+        failures += check(-300000, 300192, 1f, 300000, -299808, 1f, 299000, -299808, 0f);
+        failures += check(-8000000, -8000000, 0f, 8000000, 8000000, 0f, 8000000, 7999900, 1f);
+        failures += check(-250000, 40, 0.1f, 250000, 150, 0.9f, 0, 400000, 0.5f);
+        // The same with the points in the image, which steps the depth exactly
+        failures += check(0, 0, 0f, WIDTH - 1, 8, 1f, 4, HEIGHT - 1, 0.25f);
+
+        if (failures > 0) {
+            System.out.println(failures + " pixels with a wrong depth");
+            System.exit(1);
+        }
+        System.out.println("All depths match");
+    }
+
+    // Pixels of the triangle whose stored depth is wrong
+    private static int check(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        DepthBuffer depth = new DepthBuffer(WIDTH, HEIGHT);
+
+        // Occluder covering the image at the middle depth of the triangle
+        float occluderZ = (Math.min(Math.min(z1, z2), z3) + Math.max(Math.max(z1, z2), z3)) / 2;
+        new Triangle(0, 0, occluderZ, 2 * WIDTH, 0, occluderZ, 0, 2 * HEIGHT, occluderZ,
+                Color.GRAY, Color.GRAY, Color.GRAY).renderGouraud(image, depth);
+        int occluder = DepthBuffer.toFixed(occluderZ);
+
+        new Triangle(x1, y1, z1, x2, y2, z2, x3, y3, z3, Color.RED, Color.GREEN, Color.BLUE)
+                .renderGouraud(image, depth);
+
+        int failures = 0, inside = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int exact = exactDepth(x1, y1, DepthBuffer.toFixed(z1), x2, y2, DepthBuffer.toFixed(z2),
+                        x3, y3, DepthBuffer.toFixed(z3), x, y);
+                int expected = occluder;
+                if (exact >= 0) {
+                    inside++;
+                    expected = Math.min(exact, occluder);
+                }
+                if (Math.abs(depth.getDepth(x, y) - expected) > TOLERANCE) {
+                    if (failures == 0) {
+                        System.out.println("(" + x + ", " + y + "): " + depth.getDepth(x, y) + ", expected " + expected);
+                    }
+                    failures++;
+                }
+            }
+        }
+        System.out.printf("Triangle (%d, %d) (%d, %d) (%d, %d): %d pixels inside, %d wrong%n",
+                x1, y1, x2, y2, x3, y3, inside, failures);
+        return failures;
+    }
+
+    // Depth of the triangle at pixel (x, y) (sampled at its top-left corner, like the rasterizer
+    // does for whole pixel points), rounded down, or -1 if the pixel is outside. Computed from
+    // the barycentric coordinates without rounding.
+    private static int exactDepth(int x1, int y1, int z1, int x2, int y2, int z2, int x3, int y3, int z3, int x, int y) {
+        long area2 = (long) (x2 - x1) * (y3 - y1) - (long) (x3 - x1) * (y2 - y1);
+        if (area2 == 0) {
+            return -1;
+        }
+        long sign = area2 > 0 ? 1 : -1;
+        long w0 = ((long) (x3 - x2) * (y - y2) - (long) (y3 - y2) * (x - x2)) * sign;
+        long w1 = ((long) (x1 - x3) * (y - y3) - (long) (y1 - y3) * (x - x3)) * sign;
+        long w2 = ((long) (x2 - x1) * (y - y1) - (long) (y2 - y1) * (x - x1)) * sign;
+        if (w0 < 0 || w1 < 0 || w2 < 0) {
+            return -1;
+        }
+        BigInteger z = BigInteger.valueOf(z1).multiply(BigInteger.valueOf(w0))
+                .add(BigInteger.valueOf(z2).multiply(BigInteger.valueOf(w1)))
+                .add(BigInteger.valueOf(z3).multiply(BigInteger.valueOf(w2)));
+        return z.divide(BigInteger.valueOf(area2 * sign)).intValue();
+    }
+}
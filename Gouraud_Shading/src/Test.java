@@ -1,20 +1,33 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.util.Random;
 
 public class Test extends JFrame {
     private static final int WIDTH = 800;
     private static final int HEIGHT = 600;
     private static final int NUM_TRIANGLES = 100;
+    // Small triangles for the stress test, at most this many pixels across
+    private static final int NUM_STRESS_TRIANGLES = 100_000;
+    private static final int STRESS_TRIANGLE_SIZE = 16;
+    // Frames rendered per image type by the performance test (after as many warm-up frames)
+    private static final int BENCHMARK_FRAMES = 20;
+    // Test case mesh: MESH_CELLS x MESH_CELLS squares of MESH_CELL_SIZE pixels, two triangles each
+    private static final int MESH_CELLS = 4;
+    private static final int MESH_CELL_SIZE = 50;
 
     private BufferedImage bufferedImage;
-    private ArrayList<Triangle> triangles;
+    private TriangleBatch triangles;
     private Random rand;
     private JPanel renderPanel;
     private JPanel controlPanel;
     private boolean renderToBuffer = true;  // true - BufferedImage, false - Graphics
+    private boolean renderTiled = true;  // Binning rasterizer on all cores instead of one triangle at a time
+    private boolean depthTest = false;  // Resolve overlaps by vertex depth instead of draw order
+    private final DepthBuffer depthBuffer = new DepthBuffer(WIDTH, HEIGHT);
+    private final BlockStatistics blockStatistics = new BlockStatistics();  // Of the last frame
+    private final TileRasterizer tileRasterizer = new TileRasterizer(Runtime.getRuntime().availableProcessors());
+    private String benchmarkResult;  // Last performance test comparison, null if none
 
     public Test() {
         super("Gouraud Shading");
@@ -23,7 +36,7 @@ public class Test extends JFrame {
         setLayout(new BorderLayout());
 
         rand = new Random();
-        triangles = new ArrayList<>();
+        triangles = new TriangleBatch();
         bufferedImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
 
         // Render panel
@@ -42,10 +55,12 @@ public class Test extends JFrame {
                     g2d.fillRect(0, 0, WIDTH, HEIGHT);
                     g2d.dispose();
 
-                    for (Triangle triangle : triangles) {
-                        triangle.renderGouraud(bufferedImage);
+                    depthBuffer.resetStatistics();
+                    blockStatistics.reset();
+                    renderFrame(bufferedImage, renderTiled, depthTest ? depthBuffer : null, blockStatistics);
+                    for (int i = 0; i < triangles.size(); i++) {
                         // Approximate number of pixels in a triangle
-                        totalPixels += calculateTrianglePixels(triangle);
+                        totalPixels += calculateTrianglePixels(i);
                     }
 
                     g.drawImage(bufferedImage, 0, 0, this);
@@ -55,10 +70,10 @@ public class Test extends JFrame {
                     g.setColor(Color.BLACK);
                     g.fillRect(0, 0, WIDTH, HEIGHT);
 
-                    for (Triangle triangle : triangles) {
-                        triangle.renderGouraud(g);
+                    for (int i = 0; i < triangles.size(); i++) {
+                        triangles.get(i).renderGouraud(g);
                         // Approximate number of pixels in a triangle
-                        totalPixels += calculateTrianglePixels(triangle);
+                        totalPixels += calculateTrianglePixels(i);
                     }
                 }
 
@@ -73,7 +88,23 @@ public class Test extends JFrame {
                 g.drawString(String.format("Triangles/s: %.2f", trianglesPerSecond), 10, 40);
                 g.drawString(String.format("Pixels/s: %.2f", pixelsPerSecond), 10, 60);
                 g.drawString(String.format("Triangle count: %d", triangles.size()), 10, 80);
-                g.drawString(String.format("Render Method: %s", renderToBuffer ? "To Buffer" : "On Screen"), 10, 120);
+                if (benchmarkResult != null) {
+                    g.drawString(benchmarkResult, 10, 100);
+                }
+                g.drawString(String.format("Render Method: %s%s", !renderToBuffer ? "On Screen"
+                        : renderTiled ? "To Buffer, tiled on " + tileRasterizer.getThreadCount() + " threads" : "To Buffer",
+                        (renderToBuffer && depthTest ? ", Z-buffered" : "")
+                                + (renderToBuffer && triangles.isSubpixelPrecise() ? ", subpixel" : "")), 10, 120);
+                if (renderToBuffer) {
+                    g.drawString(String.format("Blocks: %d rejected, %d accepted, %d partial (%.2f rejected per accepted)",
+                            blockStatistics.getRejectedBlocks(), blockStatistics.getAcceptedBlocks(),
+                            blockStatistics.getPartialBlocks(), blockStatistics.getRejectedPerAccepted()), 10, 140);
+                }
+                if (renderToBuffer && depthTest) {
+                    g.drawString(String.format("Overdraw: %.2f (%d pixels shaded, %d depth-rejected), early-z skipped %d of %d blocks",
+                            depthBuffer.getOverdraw(), depthBuffer.getShadedPixels(), depthBuffer.getRejectedPixels(),
+                            depthBuffer.getCulledBlocks(), depthBuffer.getTestedBlocks()), 10, 160);
+                }
             }
         };
         renderPanel.setPreferredSize(new Dimension(WIDTH, HEIGHT));
@@ -93,6 +124,7 @@ public class Test extends JFrame {
         JButton clearButton = new JButton("Clear");
         clearButton.addActionListener(e -> {
             triangles.clear();
+            benchmarkResult = null;
             bufferedImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
             renderPanel.repaint();
         });
@@ -100,6 +132,7 @@ public class Test extends JFrame {
         JButton testCaseButton = new JButton("Test cases");
         testCaseButton.addActionListener(e -> {
             triangles.clear();
+            benchmarkResult = null;
             addTestCases();
             renderPanel.repaint();
         });
@@ -110,6 +143,17 @@ public class Test extends JFrame {
             for (int i = 0; i < NUM_TRIANGLES; i++) {
                 addRandomTriangle();
             }
+            runBenchmark();
+            renderPanel.repaint();
+        });
+
+        JButton stressButton = new JButton("Stress test");
+        stressButton.addActionListener(e -> {
+            triangles.clear();
+            for (int i = 0; i < NUM_STRESS_TRIANGLES; i++) {
+                addRandomTriangle(STRESS_TRIANGLE_SIZE);
+            }
+            runBenchmark();
             renderPanel.repaint();
         });
 
@@ -119,11 +163,33 @@ public class Test extends JFrame {
             renderPanel.repaint();
         });
 
+        JCheckBox tiledCheckBox = new JCheckBox("Tiled", renderTiled);
+        tiledCheckBox.addActionListener(e -> {
+            renderTiled = tiledCheckBox.isSelected();
+            renderPanel.repaint();
+        });
+
+        JCheckBox depthCheckBox = new JCheckBox("Z-buffer", depthTest);
+        depthCheckBox.addActionListener(e -> {
+            depthTest = depthCheckBox.isSelected();
+            renderPanel.repaint();
+        });
+
+        JCheckBox subpixelCheckBox = new JCheckBox("Subpixel", triangles.isSubpixelPrecise());
+        subpixelCheckBox.addActionListener(e -> {
+            triangles.setSubpixelPrecise(subpixelCheckBox.isSelected());
+            renderPanel.repaint();
+        });
+
         controlPanel.add(addButton);
         controlPanel.add(clearButton);
         controlPanel.add(testCaseButton);
         controlPanel.add(benchmarkButton);
+        controlPanel.add(stressButton);
         controlPanel.add(bufferCheckBox);
+        controlPanel.add(tiledCheckBox);
+        controlPanel.add(depthCheckBox);
+        controlPanel.add(subpixelCheckBox);
 
         add(controlPanel, BorderLayout.SOUTH);
 
@@ -139,59 +205,158 @@ public class Test extends JFrame {
         int x3 = rand.nextInt(WIDTH);
         int y3 = rand.nextInt(HEIGHT);
 
-        // Random colors
-        Color c1 = new Color(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256));
-        Color c2 = new Color(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256));
-        Color c3 = new Color(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256));
+        addTriangle(x1, y1, x2, y2, x3, y3);
+    }
 
-        triangles.add(new Triangle(x1, y1, x2, y2, x3, y3, c1, c2, c3));
+    // Random triangle whose points lie within size pixels of the first one
+    private void addRandomTriangle(int size) {
+        int x1 = rand.nextInt(WIDTH);
+        int y1 = rand.nextInt(HEIGHT);
+        int x2 = x1 + rand.nextInt(2 * size + 1) - size;
+        int y2 = y1 + rand.nextInt(2 * size + 1) - size;
+        int x3 = x1 + rand.nextInt(2 * size + 1) - size;
+        int y3 = y1 + rand.nextInt(2 * size + 1) - size;
+
+        addTriangle(x1, y1, x2, y2, x3, y3);
+    }
+
+    private void addTriangle(int x1, int y1, int x2, int y2, int x3, int y3) {
+        // Random depths and colors
+        float z1 = rand.nextFloat();
+        float z2 = rand.nextFloat();
+        float z3 = rand.nextFloat();
+        int c1 = randomRGB();
+        int c2 = randomRGB();
+        int c3 = randomRGB();
+
+        triangles.add(x1, y1, z1, x2, y2, z2, x3, y3, z3, c1, c2, c3);
+    }
+
+    // Packed 0xRRGGBB
+    private int randomRGB() {
+        int r = rand.nextInt(256);
+        int g = rand.nextInt(256);
+        int b = rand.nextInt(256);
+        return r << 16 | g << 8 | b;
+    }
+
+    // Compares renderGouraud into a TYPE_INT_RGB image (pixels written straight into its
+    // DataBufferInt) with a TYPE_3BYTE_BGR image (spans passed through setRGB), the tiled
+    // rasterizer and the Z-buffered renderGouraud into a TYPE_INT_RGB image
+    private void runBenchmark() {
+        double packedTime = timeFrames(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), false, null);
+        double fallbackTime = timeFrames(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR), false, null);
+        double tiledTime = timeFrames(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), true, null);
+        double depthTime = timeFrames(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), false, depthBuffer);
+
+        benchmarkResult = String.format("DataBufferInt: %.3f ms/frame, setRGB: %.3f ms/frame (%.1fx), tiled: %.3f ms/frame (%.1fx), Z-buffered: %.3f ms/frame",
+                packedTime, fallbackTime, fallbackTime / packedTime, tiledTime, packedTime / tiledTime, depthTime);
+        System.out.println(benchmarkResult);
+    }
+
+    // Average time in ms to render all triangles into the image
+    private double timeFrames(BufferedImage image, boolean tiled, DepthBuffer depth) {
+        for (int i = 0; i < BENCHMARK_FRAMES; i++) {
+            renderFrame(image, tiled, depth, null);
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_FRAMES; i++) {
+            renderFrame(image, tiled, depth, null);
+        }
+        return (System.nanoTime() - startTime) / 1_000_000.0 / BENCHMARK_FRAMES;
+    }
+
+    // Draws all triangles; with a depth buffer, that is cleared first. blocks (if not null)
+    // counts the rasterizer's blocks.
+    private void renderFrame(BufferedImage image, boolean tiled, DepthBuffer depth, BlockStatistics blocks) {
+        if (depth != null) {
+            depth.clear();
+        }
+        if (tiled) {
+            tileRasterizer.render(triangles, image, depth, blocks);
+        } else {
+            Triangle.renderGouraud(triangles, image, depth, blocks);
+        }
     }
 
     // Add set triangles for testing
     private void addTestCases() {
         // Test Case 1: Equilateral triangle
-        triangles.add(new Triangle(
+        triangles.add(
                 400, 100,
                 300, 300,
                 500, 300,
                 Color.RED, Color.GREEN, Color.BLUE
-        ));
+        );
 
         // Test Case 2: Long and narrow triangle
-        triangles.add(new Triangle(
+        triangles.add(
                 100, 400,
                 700, 450,
                 400, 500,
                 Color.YELLOW, Color.CYAN, Color.MAGENTA
-        ));
+        );
 
         // Test Case 3: Triangle with slightly different colors
-        triangles.add(new Triangle(
+        triangles.add(
                 200, 200,
                 300, 500,
                 100, 500,
                 new Color(200, 100, 100),
                 new Color(210, 110, 110),
                 new Color(220, 120, 120)
-        ));
+        );
 
         // Test Case 4: Degenerated triangle
-        triangles.add(new Triangle(
+        triangles.add(
                 600, 400,
                 601, 395,
                 700, 300,
                 Color.WHITE, Color.GRAY, Color.DARK_GRAY
-        ));
+        );
+
+        // Test Case 5: Mesh of triangles sharing edges, with points between pixels. With
+        // subpixel precision every pixel is drawn once (overdraw 1 with the Z-buffer on)
+        float[] meshX = new float[(MESH_CELLS + 1) * (MESH_CELLS + 1)];
+        float[] meshY = new float[meshX.length];
+        int[] meshRGB = new int[meshX.length];
+        for (int j = 0; j <= MESH_CELLS; j++) {
+            for (int i = 0; i <= MESH_CELLS; i++) {
+                int v = j * (MESH_CELLS + 1) + i;
+                boolean inner = i > 0 && i < MESH_CELLS && j > 0 && j < MESH_CELLS;
+                float jitter = inner ? ((i * 7 + j * 3) % 5 - 2) * 6.3f : 0;
+                meshX[v] = 560.25f + i * MESH_CELL_SIZE + jitter;
+                meshY[v] = 60.75f + j * MESH_CELL_SIZE - jitter;
+                meshRGB[v] = (55 + 200 * i / MESH_CELLS) << 16 | (55 + 200 * j / MESH_CELLS) << 8 | 180;
+            }
+        }
+        for (int j = 0; j < MESH_CELLS; j++) {
+            for (int i = 0; i < MESH_CELLS; i++) {
+                int a = j * (MESH_CELLS + 1) + i;
+                int b = a + 1;
+                int c = a + MESH_CELLS + 2;
+                int d = a + MESH_CELLS + 1;
+                addMeshTriangle(meshX, meshY, meshRGB, a, b, c);
+                addMeshTriangle(meshX, meshY, meshRGB, a, c, d);
+            }
+        }
+    }
+
+    private void addMeshTriangle(float[] meshX, float[] meshY, int[] meshRGB, int a, int b, int c) {
+        triangles.addSubpixel(meshX[a], meshY[a], 0, meshX[b], meshY[b], 0, meshX[c], meshY[c], 0,
+                meshRGB[a], meshRGB[b], meshRGB[c]);
     }
 
-    private int calculateTrianglePixels(Triangle triangle) {
-        int[] xPts = triangle.getXPts();
-        int[] yPts = triangle.getYPts();
+    private int calculateTrianglePixels(int i) {
+        float x1 = triangles.getX(i, 0), y1 = triangles.getY(i, 0);
+        float x2 = triangles.getX(i, 1), y2 = triangles.getY(i, 1);
+        float x3 = triangles.getX(i, 2), y3 = triangles.getY(i, 2);
 
         // Finding an area using Heron formula
-        double a = distance(xPts[0], yPts[0], xPts[1], yPts[1]);
-        double b = distance(xPts[1], yPts[1], xPts[2], yPts[2]);
-        double c = distance(xPts[2], yPts[2], xPts[0], yPts[0]);
+        double a = distance(x1, y1, x2, y2);
+        double b = distance(x2, y2, x3, y3);
+        double c = distance(x3, y3, x1, y1);
 
         double s = (a + b + c) / 2;
         double area = Math.sqrt(s * (s - a) * (s - b) * (s - c));
@@ -199,7 +364,7 @@ public class Test extends JFrame {
         return (int) area;
     }
 
-    private double distance(int x1, int y1, int x2, int y2) {
+    private double distance(double x1, double y1, double x2, double y2) {
         return Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1));
     }
 
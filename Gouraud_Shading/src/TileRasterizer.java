@@ -0,0 +1,185 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Draws many triangles with several threads. The image is split into square tiles and every
+// triangle is first sorted into the tiles its bounding square overlaps (binning). Worker
+// threads then take whole tiles, so each tile has a single owner, and draw the triangles of
+// their tile clipped to it in submission order. Every pixel is therefore written in the same
+// order as by the serial loop over renderGouraud, and the image comes out identical.
+public class TileRasterizer {
+    private static final int TILE_SIZE = 128;
+
+    private final int threadCount;
+    private final ExecutorService workers;
+
+    // Bins, reused between frames: the triangles overlapping tile t are
+    // binTriangles[binStart[t]] .. binTriangles[binStart[t + 1] - 1], in submission order
+    private int[] binStart = new int[0];
+    private int[] binTriangles = new int[0];
+    // Tile range (first column, first row, last column, last row) per triangle, -1 if off-image
+    private int[] tileRanges = new int[0];
+    // Triangles of the frame being drawn; render(List, ...) copies them into its own batch
+    private TriangleBatch batch;
+    private DepthBuffer depth;
+    private BlockStatistics blocks;
+    private final TriangleBatch listBatch = new TriangleBatch();
+
+    public TileRasterizer(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+        this.workers = Executors.newFixedThreadPool(this.threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "tile-rasterizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void render(List<Triangle> triangles, BufferedImage image) {
+        listBatch.clear();
+        listBatch.ensureCapacity(triangles.size());
+        for (Triangle triangle : triangles) {
+            listBatch.add(triangle);
+        }
+        render(listBatch, image);
+    }
+
+    public void render(TriangleBatch triangles, BufferedImage image) {
+        render(triangles, image, null);
+    }
+
+    // With depth testing against depth (null for none). Depth tiles lie within one tile, so
+    // their early-z bounds have a single owner too.
+    public void render(TriangleBatch triangles, BufferedImage image, DepthBuffer depth) {
+        render(triangles, image, depth, null);
+    }
+
+    // Same, counting the rasterizer's blocks in blocks (null to not count)
+    public void render(TriangleBatch triangles, BufferedImage image, DepthBuffer depth, BlockStatistics blocks) {
+        Triangle.checkSize(image, depth);
+        batch = triangles;
+        int tilesX = (image.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (image.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tilesX * tilesY;
+        this.depth = depth;
+        this.blocks = blocks;
+        bin(triangles, image.getWidth(), image.getHeight(), tilesX, tileCount);
+
+        if (threadCount == 1) {
+            for (int tile = 0; tile < tileCount; tile++) {
+                renderTile(image, tile, tilesX);
+            }
+            return;
+        }
+
+        AtomicInteger nextTile = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            tasks.add(() -> {
+                int tile;
+                while ((tile = nextTile.getAndIncrement()) < tileCount) {
+                    renderTile(image, tile, tilesX);
+                }
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> result : workers.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Stops the worker threads
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    // Counts the triangles per tile, turns the counts into bin start offsets and then
+    // files every triangle in the bins of its tiles
+    private void bin(TriangleBatch triangles, int width, int height, int tilesX, int tileCount) {
+        int count = triangles.size();
+        int[] x = triangles.x, y = triangles.y;
+        if (tileRanges.length < count * 4) {
+            tileRanges = new int[count * 4];
+        }
+        if (binStart.length < tileCount + 1) {
+            binStart = new int[tileCount + 1];
+        }
+        Arrays.fill(binStart, 0, tileCount + 1, 0);
+
+        for (int i = 0; i < count; i++) {
+            // Pixels holding the points (28.4), which contain every pixel sampled inside
+            int p = i * 3;
+            int bits = Triangle.SUBPIXEL_BITS;
+            int minX = Math.max(Math.min(Math.min(x[p], x[p + 1]), x[p + 2]) >> bits, 0);
+            int maxX = Math.min(Math.max(Math.max(x[p], x[p + 1]), x[p + 2]) >> bits, width - 1);
+            int minY = Math.max(Math.min(Math.min(y[p], y[p + 1]), y[p + 2]) >> bits, 0);
+            int maxY = Math.min(Math.max(Math.max(y[p], y[p + 1]), y[p + 2]) >> bits, height - 1);
+
+            int r = i * 4;
+            if (minX > maxX || minY > maxY) {
+                tileRanges[r] = -1;
+                continue;
+            }
+            tileRanges[r] = minX / TILE_SIZE;
+            tileRanges[r + 1] = minY / TILE_SIZE;
+            tileRanges[r + 2] = maxX / TILE_SIZE;
+            tileRanges[r + 3] = maxY / TILE_SIZE;
+            for (int tileY = tileRanges[r + 1]; tileY <= tileRanges[r + 3]; tileY++) {
+                for (int tileX = tileRanges[r]; tileX <= tileRanges[r + 2]; tileX++) {
+                    binStart[tileY * tilesX + tileX + 1]++;
+                }
+            }
+        }
+
+        for (int tile = 0; tile < tileCount; tile++) {
+            binStart[tile + 1] += binStart[tile];
+        }
+        if (binTriangles.length < binStart[tileCount]) {
+            binTriangles = new int[binStart[tileCount]];
+        }
+
+        // Fill each bin from its start; afterwards binStart[t] has moved to the end of bin t,
+        // which is the start of bin t + 1, so shifting it back by one restores the offsets
+        for (int i = 0; i < count; i++) {
+            int r = i * 4;
+            if (tileRanges[r] < 0) {
+                continue;
+            }
+            for (int tileY = tileRanges[r + 1]; tileY <= tileRanges[r + 3]; tileY++) {
+                for (int tileX = tileRanges[r]; tileX <= tileRanges[r + 2]; tileX++) {
+                    binTriangles[binStart[tileY * tilesX + tileX]++] = i;
+                }
+            }
+        }
+        System.arraycopy(binStart, 0, binStart, 1, tileCount);
+        binStart[0] = 0;
+    }
+
+    private void renderTile(BufferedImage image, int tile, int tilesX) {
+        int minX = (tile % tilesX) * TILE_SIZE;
+        int minY = (tile / tilesX) * TILE_SIZE;
+        int maxX = minX + TILE_SIZE - 1;
+        int maxY = minY + TILE_SIZE - 1;
+
+        for (int n = binStart[tile]; n < binStart[tile + 1]; n++) {
+            Triangle.renderGouraud(batch, binTriangles[n], image, minX, minY, maxX, maxY, depth, blocks);
+        }
+    }
+}
@@ -1,64 +1,89 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 public class Triangle {
+    // Size of the blocks the rasterizer walks the bounding square in, one depth tile
+    private static final int BLOCK_SIZE = DepthBuffer.TILE_SIZE;
+    // Without a depth buffer, bounding squares smaller than this both ways are drawn as a
+    // single block of pixels to test: block tests cost more than they save there
+    private static final int SMALL_TRIANGLE_SIZE = 4 * BLOCK_SIZE;
+    // The rasterizer takes points in fixed point with this many fraction bits (28.4)
+    static final int SUBPIXEL_BITS = 4;
+    static final int SUBPIXEL_SCALE = 1 << SUBPIXEL_BITS;
+
+    // Transparent image renderGouraud(Graphics) rasterizes into, one per thread, the size of the
+    // clip it last drew into
+    private static final ThreadLocal<BufferedImage> graphicsScratch = new ThreadLocal<>();
 
     private int[] xPts;
     private int[] yPts;
+    // Depth of each point, 0 (nearest) to 1 (farthest); only used with a DepthBuffer
+    private float[] zPts;
 
     private Color[] colors;
 
     public Triangle(int x1, int y1, int x2, int y2, int x3, int y3,
                     Color c1, Color c2, Color c3) {
+        this(x1, y1, 0, x2, y2, 0, x3, y3, 0, c1, c2, c3);
+    }
+
+    public Triangle(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3,
+                    Color c1, Color c2, Color c3) {
         this.xPts = new int[]{x1, x2, x3};
         this.yPts = new int[]{y1, y2, y3};
+        this.zPts = new float[]{z1, z2, z3};
         this.colors = new Color[]{c1, c2, c3};
     }
     
     public void renderGouraud(BufferedImage image) {
+        rasterize(image, 0, 0, 0, 0, image.getWidth() - 1, image.getHeight() - 1, null);
+    }
 
-        // Square bounding a triangle (opposite points)
-        int sqMinX = Math.min(Math.min(xPts[0], xPts[1]), xPts[2]);
-        int sqMaxX = Math.max(Math.max(xPts[0], xPts[1]), xPts[2]);
-        int sqMinY = Math.min(Math.min(yPts[0], yPts[1]), yPts[2]);
-        int sqMaxY = Math.max(Math.max(yPts[0], yPts[1]), yPts[2]);
-
-        // Avoid getting out of images' bounds
-        sqMinX = Math.max(sqMinX, 0);
-        sqMinY = Math.max(sqMinY, 0);
-        sqMaxX = Math.min(sqMaxX, image.getWidth() - 1);
-        sqMaxY = Math.min(sqMaxY, image.getHeight() - 1);
-
-        // For each pixel in bounding square
-        for (int y = sqMinY; y <= sqMaxY; y++) {
-            for (int x = sqMinX; x <= sqMaxX; x++) {
-                // If inside a triangle
-                if (isInside(x, y)) {
-                    // Find barycentric coordinates for interpolation
-                    double[] baryCoords = findBarycentricCoordinates(x, y);
-//                    Note to myself about barycentric coordinates (a, b, c):
-//                        For each point (px, py) inside a triangle:
-//                            a + b + c = 1
-//                            a, b, c >= 0
-//                            px = a * x1 + b * x2 + c * x3
-//                            py = a * y1 + b * y2 + c * y
-//                        Finding barycentric coordinates:
-//                            P - point; A, B, C - triangle points
-//                            a = Area(PBC) / Area(ABC)
-//                            b = Area(APC) / Area(ABC)
-//                            c = Area(ABP) / Area(ABC)
-//                        We "link" a to A, b to B, c to C:
-//                            P = A -> (a, b, c) = (1, 0, 0)
-//                            P = B -> (a, b, c) = (0, 1, 0)
-//                            P = C -> (a, b, c) = (0, 0, 1)
-
-                    // Interpolate pixel color
-                    Color interpolatedColor = interpolateColor(baryCoords);
-
-                    // Set pixel color
-                    image.setRGB(x, y, interpolatedColor.getRGB());
-                }
-            }
+    // Draws only the pixels nearer than (or as near as) what the depth buffer holds, and
+    // stores their depth. The depth buffer has to be the size of the image.
+    public void renderGouraud(BufferedImage image, DepthBuffer depth) {
+        checkSize(image, depth);
+        rasterize(image, 0, 0, 0, 0, image.getWidth() - 1, image.getHeight() - 1, depth);
+    }
+
+    // Draws every triangle of the batch in order, same pixels as renderGouraud on each of them
+    public static void renderGouraud(TriangleBatch batch, BufferedImage image) {
+        renderGouraud(batch, image, null);
+    }
+
+    // Same with depth testing against depth (null for none)
+    public static void renderGouraud(TriangleBatch batch, BufferedImage image, DepthBuffer depth) {
+        renderGouraud(batch, image, depth, null);
+    }
+
+    // Same, counting the blocks in blocks (null to not count)
+    public static void renderGouraud(TriangleBatch batch, BufferedImage image, DepthBuffer depth, BlockStatistics blocks) {
+        checkSize(image, depth);
+        int clipMaxX = image.getWidth() - 1, clipMaxY = image.getHeight() - 1;
+        for (int i = 0; i < batch.size(); i++) {
+            renderGouraud(batch, i, image, 0, 0, clipMaxX, clipMaxY, depth, blocks);
+        }
+    }
+
+    // Draws only the pixels of triangle i in [minX, maxX] x [minY, maxY] of the image (inclusive).
+    // Pixels come out the same as from a full renderGouraud, so tiles can be drawn separately.
+    static void renderGouraud(TriangleBatch batch, int i, BufferedImage image, int minX, int minY, int maxX, int maxY,
+                              DepthBuffer depth, BlockStatistics blocks) {
+        int[] x = batch.x, y = batch.y, z = batch.z, rgb = batch.rgb;
+        int p = i * 3;
+        rasterize(x[p], y[p], z[p], x[p + 1], y[p + 1], z[p + 1], x[p + 2], y[p + 2], z[p + 2],
+                rgb[p], rgb[p + 1], rgb[p + 2], batch.isSubpixelPrecise(), image, 0, 0, Math.max(minX, 0), Math.max(minY, 0),
+                Math.min(maxX, image.getWidth() - 1), Math.min(maxY, image.getHeight() - 1), depth, blocks);
+    }
+
+    static void checkSize(BufferedImage image, DepthBuffer depth) {
+        if (depth != null && (depth.getWidth() != image.getWidth() || depth.getHeight() != image.getHeight())) {
+            throw new IllegalArgumentException("Depth buffer is " + depth.getWidth() + "x" + depth.getHeight()
+                    + ", image is " + image.getWidth() + "x" + image.getHeight());
         }
     }
 
@@ -70,77 +95,404 @@ public class Triangle {
         int minY = Math.min(Math.min(yPts[0], yPts[1]), yPts[2]);
         int maxY = Math.max(Math.max(yPts[0], yPts[1]), yPts[2]);
 
-        // For each pixel in bounding square
-        for (int y = minY; y <= maxY; y++) {
-            for (int x = minX; x <= maxX; x++) {
-                // If inside a triangle
-                if (isInside(x, y)) {
-                    // Find barycentric coordinates for interpolation
-                    double[] baryCoords = findBarycentricCoordinates(x, y);
-
-                    // Interpolate pixel color
-                    Color interpolatedColor = interpolateColor(baryCoords);
+        // Only the visible part needs to be rasterized
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            minX = Math.max(minX, clip.x);
+            minY = Math.max(minY, clip.y);
+            maxX = Math.min(maxX, clip.x + clip.width - 1);
+            maxY = Math.min(maxY, clip.y + clip.height - 1);
+        }
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
 
-                    // Set graphics color and draw a pixel
-                    g.setColor(interpolatedColor);
-                    g.fillRect(x, y, 1, 1);
-                }
-            }
+        // Rasterize into the top-left corner of a transparent scratch image and draw the bounding
+        // square from it once, instead of setting a color and filling a rectangle for every pixel.
+        // The scratch image is the size of the clip, which every clipped bounding square fits in,
+        // so it is only made again when the clip changes size.
+        // Without a clip, any image the bounding square fits in does.
+        int width = maxX - minX + 1, height = maxY - minY + 1;
+        BufferedImage scratch = graphicsScratch.get();
+        boolean fits = scratch != null && (clip != null
+                ? scratch.getWidth() == clip.width && scratch.getHeight() == clip.height
+                : scratch.getWidth() >= width && scratch.getHeight() >= height);
+        if (!fits) {
+            scratch = clip != null
+                    ? new BufferedImage(clip.width, clip.height, BufferedImage.TYPE_INT_ARGB)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            graphicsScratch.set(scratch);
         }
+        // Transparent again where the previous triangle was drawn (or all of a new image)
+        int[] pixels = ((DataBufferInt) scratch.getRaster().getDataBuffer()).getData();
+        for (int y = 0, row = 0; y < height; y++, row += scratch.getWidth()) {
+            Arrays.fill(pixels, row, row + width, 0);
+        }
+        rasterize(scratch, minX, minY, 0, 0, width - 1, height - 1, null);
+        g.drawImage(scratch, minX, minY, maxX + 1, maxY + 1, 0, 0, width, height, null);
     }
 
-    private boolean isInside(int x, int y) {
-        double[] baryCoords = findBarycentricCoordinates(x, y);
-        return baryCoords[0] >= 0 && baryCoords[1] >= 0 && baryCoords[2] >= 0
-                && (baryCoords[0] + baryCoords[1] + baryCoords[2] - 1) < 0.001;
+    // Draws the part of the triangle inside [clipMinX, clipMaxX] x [clipMinY, clipMaxY] (image
+    // coordinates) into an image whose top-left pixel is at (originX, originY) on screen.
+    //
+    // Points are in 28.4 fixed point (1/16 pixel). Each pixel is sampled at one position: its
+    // top-left corner, where integer points land exactly, or, if precise, its center.
+    //
+    // Edge functions: for the edge from (xa, ya) to (xb, yb),
+    //     w(x, y) = (xb - xa) * (y - ya) - (yb - ya) * (x - xa)
+    // is twice the signed area of the triangle spanned by the edge and (x, y). With w0 for the
+    // edge opposite point 1, w1 opposite point 2 and w2 opposite point 3 (signs flipped if needed
+    // so w0 + w1 + w2 = 2 * area > 0), a pixel is inside when all three are >= 0, and
+    // w0, w1, w2 divided by 2 * area are its barycentric coordinates (a, b, c):
+    //     P = A -> (a, b, c) = (1, 0, 0), P = B -> (0, 1, 0), P = C -> (0, 0, 1)
+    // w is linear, so it is set up once per triangle and stepped by a constant per pixel and
+    // per row. The same goes for r0 * w0 + r1 * w1 + r2 * w2 (and g, b), the interpolated color
+    // times 2 * area. All of it is integer math, so stepping is exact.
+    //
+    // Precise sampling adds the top-left fill rule: a sample exactly on an edge is only inside
+    // if the edge is a top edge (horizontal, triangle below it) or a left edge (triangle to its
+    // right). Two triangles sharing an edge see it from opposite sides, so each pixel on it is
+    // drawn by exactly one of them. Otherwise samples on any edge are inside (both triangles
+    // draw them).
+    //
+    // The bounding square is walked in 8x8 blocks aligned to the image. Since w is linear, its
+    // range over a block is given by the block's corners: a block outside an edge is rejected
+    // without looking at its pixels, and a block inside all three edges is filled without
+    // testing them. A triangle is convex, so in the other blocks the pixels inside form one
+    // span per block row. Spans are written straight into the int[] of TYPE_INT_RGB /
+    // TYPE_INT_ARGB images; any other image gets each span through one setRGB call.
+    //
+    // With a depth buffer (origin has to be 0, 0) the depth z1 * w0 + z2 * w1 + z3 * w2 is
+    // stepped like the colors, and a pixel is tested against the buffer before its color is
+    // worked out. Blocks are the depth buffer's tiles, so the tile test skips hidden blocks.
+    private void rasterize(BufferedImage image, int originX, int originY,
+                           int clipMinX, int clipMinY, int clipMaxX, int clipMaxY, DepthBuffer depth) {
+        rasterize(xPts[0] << SUBPIXEL_BITS, yPts[0] << SUBPIXEL_BITS, DepthBuffer.toFixed(zPts[0]),
+                xPts[1] << SUBPIXEL_BITS, yPts[1] << SUBPIXEL_BITS, DepthBuffer.toFixed(zPts[1]),
+                xPts[2] << SUBPIXEL_BITS, yPts[2] << SUBPIXEL_BITS, DepthBuffer.toFixed(zPts[2]),
+                colors[0].getRGB(), colors[1].getRGB(), colors[2].getRGB(), false,
+                image, originX, originY, clipMinX, clipMinY, clipMaxX, clipMaxY, depth, null);
     }
 
-    private double[] findBarycentricCoordinates(int x, int y) {
-        int x1 = xPts[0], y1 = yPts[0];
-        int x2 = xPts[1], y2 = yPts[1];
-        int x3 = xPts[2], y3 = yPts[2];
+    // The same for a triangle given by its points (28.4), their fixed point depths and their
+    // colors (packed 0xRRGGBB)
+    private static void rasterize(int x1, int y1, int z1, int x2, int y2, int z2, int x3, int y3, int z3,
+                                  int rgb1, int rgb2, int rgb3, boolean precise,
+                                  BufferedImage image, int originX, int originY,
+                                  int clipMinX, int clipMinY, int clipMaxX, int clipMaxY,
+                                  DepthBuffer depth, BlockStatistics blocks) {
 
-        double areaTotal = Math.abs((x1 * (y2 - y3) + x2 * (y3 - y1) + x3 * (y1 - y2)) / 2.0);
+        // Twice the signed area; degenerate triangles cover no pixels
+        long area2 = (long) (x2 - x1) * (y3 - y1) - (long) (x3 - x1) * (y2 - y1);
+        if (area2 == 0) {
+            return;
+        }
+        int sign = area2 > 0 ? 1 : -1;
+        double inverseArea2 = 1.0 / (area2 * sign);
 
-        // Finding areas using matrix's determinant
-        double areaA = Math.abs((x * (y2 - y3) + x2 * (y3 - y) + x3 * (y - y2)) / 2.0);
-        double areaB = Math.abs((x1 * (y - y3) + x * (y3 - y1) + x3 * (y1 - y)) / 2.0);
-        double areaC = Math.abs((x1 * (y2 - y) + x2 * (y - y1) + x * (y1 - y2)) / 2.0);
+        // Sample position in a pixel, in 1/16 pixels from its top-left corner
+        int sample = precise ? SUBPIXEL_SCALE / 2 : 0;
+
+        // Square of pixels whose samples bound the triangle (opposite points), in image
+        // coordinates and clipped
+        int sqMinX = Math.max(-Math.floorDiv(sample - Math.min(Math.min(x1, x2), x3), SUBPIXEL_SCALE) - originX, clipMinX);
+        int sqMaxX = Math.min(Math.floorDiv(Math.max(Math.max(x1, x2), x3) - sample, SUBPIXEL_SCALE) - originX, clipMaxX);
+        int sqMinY = Math.max(-Math.floorDiv(sample - Math.min(Math.min(y1, y2), y3), SUBPIXEL_SCALE) - originY, clipMinY);
+        int sqMaxY = Math.min(Math.floorDiv(Math.max(Math.max(y1, y2), y3) - sample, SUBPIXEL_SCALE) - originY, clipMaxY);
+        if (sqMinX > sqMaxX || sqMinY > sqMaxY) {
+            return;
+        }
+
+        // Per-pixel (stepX) and per-row (stepY) increments of each edge function
+        long stepX0 = -(long) (y3 - y2) * sign * SUBPIXEL_SCALE, stepY0 = (long) (x3 - x2) * sign * SUBPIXEL_SCALE;
+        long stepX1 = -(long) (y1 - y3) * sign * SUBPIXEL_SCALE, stepY1 = (long) (x1 - x3) * sign * SUBPIXEL_SCALE;
+        long stepX2 = -(long) (y2 - y1) * sign * SUBPIXEL_SCALE, stepY2 = (long) (x2 - x1) * sign * SUBPIXEL_SCALE;
+
+        // Edge functions at the sample of the top-left pixel of the bounding square
+        long startX = ((long) (sqMinX + originX) << SUBPIXEL_BITS) + sample;
+        long startY = ((long) (sqMinY + originY) << SUBPIXEL_BITS) + sample;
+        long rowW0 = ((x3 - x2) * (startY - y2) - (y3 - y2) * (startX - x2)) * sign;
+        long rowW1 = ((x1 - x3) * (startY - y3) - (y1 - y3) * (startX - x3)) * sign;
+        long rowW2 = ((x2 - x1) * (startY - y1) - (y2 - y1) * (startX - x1)) * sign;
+
+        // Color channels times 2 * area, with their increments
+        int r1 = (rgb1 >> 16) & 0xFF, g1 = (rgb1 >> 8) & 0xFF, b1 = rgb1 & 0xFF;
+        int r2 = (rgb2 >> 16) & 0xFF, g2 = (rgb2 >> 8) & 0xFF, b2 = rgb2 & 0xFF;
+        int r3 = (rgb3 >> 16) & 0xFF, g3 = (rgb3 >> 8) & 0xFF, b3 = rgb3 & 0xFF;
+        long stepXR = r1 * stepX0 + r2 * stepX1 + r3 * stepX2, stepYR = r1 * stepY0 + r2 * stepY1 + r3 * stepY2;
+        long stepXG = g1 * stepX0 + g2 * stepX1 + g3 * stepX2, stepYG = g1 * stepY0 + g2 * stepY1 + g3 * stepY2;
+        long stepXB = b1 * stepX0 + b2 * stepX1 + b3 * stepX2, stepYB = b1 * stepY0 + b2 * stepY1 + b3 * stepY2;
+        long rowR = r1 * rowW0 + r2 * rowW1 + r3 * rowW2;
+        long rowG = g1 * rowW0 + g2 * rowW1 + g3 * rowW2;
+        long rowB = b1 * rowW0 + b2 * rowW1 + b3 * rowW2;
+
+        // Depth times 2 * area the same way, as long as that fits in a long. The edge functions
+        // count 1/256 pixel areas, so points far outside the image (tens of thousands of pixels)
+        // take it past 2^63; those triangles step the depth itself as a double instead.
+        // Interpolated depths lie between the points' depths, but rounding (and the double's
+        // error piling up over many steps) can take them past, so they are clamped to
+        // [nearZ, farZ]; the tile test relies on that.
+        long stepXZ = 0, stepYZ = 0, rowZ = 0;
+        double stepXZd = 0, stepYZd = 0, rowZd = 0;
+        boolean exactZ = true;
+        if (depth != null) {
+            // Largest |w0| + |w1| + |w2| in the bounding square (and the row below it)
+            long columns = sqMaxX - sqMinX + 1, rowCount = sqMaxY - sqMinY + 2;
+            long maxW = Math.abs(rowW0) + Math.abs(rowW1) + Math.abs(rowW2)
+                    + columns * (Math.abs(stepX0) + Math.abs(stepX1) + Math.abs(stepX2))
+                    + rowCount * (Math.abs(stepY0) + Math.abs(stepY1) + Math.abs(stepY2));
+            exactZ = maxW < Long.MAX_VALUE / DepthBuffer.FAR;
+            if (exactZ) {
+                stepXZ = z1 * stepX0 + z2 * stepX1 + z3 * stepX2;
+                stepYZ = z1 * stepY0 + z2 * stepY1 + z3 * stepY2;
+                rowZ = z1 * rowW0 + z2 * rowW1 + z3 * rowW2;
+            } else {
+                stepXZd = ((double) z1 * stepX0 + (double) z2 * stepX1 + (double) z3 * stepX2) * inverseArea2;
+                stepYZd = ((double) z1 * stepY0 + (double) z2 * stepY1 + (double) z3 * stepY2) * inverseArea2;
+                rowZd = ((double) z1 * rowW0 + (double) z2 * rowW1 + (double) z3 * rowW2) * inverseArea2;
+            }
+        }
+        int nearZ = Math.min(Math.min(z1, z2), z3);
+        int farZ = Math.max(Math.max(z1, z2), z3);
+        long shaded = 0, rejected = 0, tested = 0, culled = 0;
 
-        double[] baryCoords = new double[3];
-        if (areaTotal == 0) {
-            baryCoords[0] = baryCoords[1] = baryCoords[2] = 0;
+        // Top-left rule: the edge functions are integers, so moving every other edge in by 1
+        // turns their w >= 0 into w > 0. The colors and depth above use the exact values.
+        if (precise) {
+            rowW0 -= isTopLeft(stepX0, stepY0) ? 0 : 1;
+            rowW1 -= isTopLeft(stepX1, stepY1) ? 0 : 1;
+            rowW2 -= isTopLeft(stepX2, stepY2) ? 0 : 1;
+        }
+
+        // Spans go to the image's pixel array if it has a packed int RGB layout, else to a
+        // scratch row passed on with setRGB
+        int[] pixels = packedPixels(image);
+        int[] span = pixels;
+        int rowStart = 0, scanline = 0;
+        int alpha = 0xFF000000;
+        if (pixels != null) {
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) image.getSampleModel();
+            WritableRaster raster = image.getRaster();
+            scanline = sampleModel.getScanlineStride();
+            rowStart = raster.getDataBuffer().getOffset()
+                    + sampleModel.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+            // setRGB stores no alpha bits in TYPE_INT_RGB pixels, so neither do we
+            if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+                alpha = 0;
+            }
         } else {
-            baryCoords[0] = areaA / areaTotal;
-            baryCoords[1] = areaB / areaTotal;
-            baryCoords[2] = areaC / areaTotal;
+            span = new int[sqMaxX - sqMinX + 1];
         }
+        int[] depths = depth != null ? depth.depth : null;
+        long rejectedBlocks = 0, acceptedBlocks = 0, partialBlocks = 0;
+        boolean small = depth == null
+                && sqMaxX - sqMinX < SMALL_TRIANGLE_SIZE && sqMaxY - sqMinY < SMALL_TRIANGLE_SIZE;
 
-        return baryCoords;
-    }
+        // For each row of blocks; rowW0 .. rowZ are at its top-left pixel
+        int blockMaxY;
+        for (int blockY = sqMinY; blockY <= sqMaxY; blockY = blockMaxY + 1) {
+            blockMaxY = small ? sqMaxY : Math.min(blockY | BLOCK_SIZE - 1, sqMaxY);
+            long rows = blockMaxY - blockY;
+
+            int blockMaxX;
+            for (int blockX = sqMinX; blockX <= sqMaxX; blockX = blockMaxX + 1) {
+                blockMaxX = small ? sqMaxX : Math.min(blockX | BLOCK_SIZE - 1, sqMaxX);
 
-    private Color interpolateColor(double[] baryCoords) {
+                // Edge functions at the block's top-left pixel
+                long dx = blockX - sqMinX;
+                long blockW0 = rowW0 + dx * stepX0, blockW1 = rowW1 + dx * stepX1, blockW2 = rowW2 + dx * stepX2;
+                int kind = small ? 0 : blockKind(blockW0, blockW1, blockW2, blockMaxX - blockX, rows,
+                        stepX0, stepY0, stepX1, stepY1, stepX2, stepY2);
+                if (kind < 0) {
+                    rejectedBlocks++;
+                    continue;
+                }
+                boolean inside = kind > 0;
+                if (inside) {
+                    acceptedBlocks++;
+                } else if (!small) {
+                    partialBlocks++;
+                }
+
+                // Without a depth buffer, the following blocks of the same kind are drawn
+                // along with this one, so rows are not cut into 8 pixel pieces
+                while (depth == null && blockMaxX < sqMaxX) {
+                    int nextX = blockMaxX + 1;
+                    int nextMaxX = Math.min(nextX | BLOCK_SIZE - 1, sqMaxX);
+                    long nextDx = nextX - blockX;
+                    if (blockKind(blockW0 + nextDx * stepX0, blockW1 + nextDx * stepX1, blockW2 + nextDx * stepX2,
+                            nextMaxX - nextX, rows, stepX0, stepY0, stepX1, stepY1, stepX2, stepY2) != kind) {
+                        break;
+                    }
+                    if (inside) {
+                        acceptedBlocks++;
+                    } else {
+                        partialBlocks++;
+                    }
+                    blockMaxX = nextMaxX;
+                }
 
-        int[] r = new int[3];
-        int[] g = new int[3];
-        int[] b = new int[3];
+                // A block is a depth tile. If all of it is nearer than this triangle, skip it;
+                // if the whole triangle is nearer than all of it, every pixel passes.
+                int tile = 0, tileMin = 0, drawn = 0;
+                boolean test = false;
+                if (depth != null) {
+                    tile = (blockY >> DepthBuffer.TILE_SHIFT) * depth.tilesX + (blockX >> DepthBuffer.TILE_SHIFT);
+                    tested++;
+                    if (nearZ > depth.maxDepth(tile)) {
+                        culled++;
+                        continue;
+                    }
+                    tileMin = depth.tileMin[tile];
+                    test = farZ > tileMin;
+                }
+
+                long lineW0 = blockW0, lineW1 = blockW1, lineW2 = blockW2;
+                long lineR = rowR + dx * stepXR, lineG = rowG + dx * stepXG, lineB = rowB + dx * stepXB;
+                long lineZ = rowZ + dx * stepXZ;
+                double lineZd = rowZd + dx * stepXZd;
+                for (int y = blockY; y <= blockMaxY; y++) {
+                    long w0 = lineW0, w1 = lineW1, w2 = lineW2;
+                    int x = blockX;
+
+                    // Skip to the first pixel inside the triangle
+                    if (!inside) {
+                        while (x <= blockMaxX && (w0 < 0 || w1 < 0 || w2 < 0)) {
+                            w0 += stepX0;
+                            w1 += stepX1;
+                            w2 += stepX2;
+                            x++;
+                        }
+                    }
+
+                    int spanStartX = x;
+                    long skipped = x - blockX;
+                    long r = lineR + skipped * stepXR, g = lineG + skipped * stepXG, b = lineB + skipped * stepXB;
+                    int i = pixels != null ? rowStart + y * scanline + x : 0;
+
+                    // Fill while inside
+                    if (depth == null) {
+                        while (x <= blockMaxX && (inside || (w0 >= 0 && w1 >= 0 && w2 >= 0))) {
+                            span[i++] = alpha
+                                    | (int) (r * inverseArea2) << 16
+                                    | (int) (g * inverseArea2) << 8
+                                    | (int) (b * inverseArea2);
+                            w0 += stepX0;
+                            w1 += stepX1;
+                            w2 += stepX2;
+                            r += stepXR;
+                            g += stepXG;
+                            b += stepXB;
+                            x++;
+                        }
+                    } else {
+                        long z = lineZ + skipped * stepXZ;
+                        double zd = lineZd + skipped * stepXZd;
+                        int d = y * depth.width + x;
+                        while (x <= blockMaxX && (inside || (w0 >= 0 && w1 >= 0 && w2 >= 0))) {
+                            int pixelZ = exactZ ? (int) (z * inverseArea2) : (int) zd;
+                            pixelZ = Math.max(nearZ, Math.min(pixelZ, farZ));
+                            if (!test || pixelZ <= depths[d]) {
+                                depths[d] = pixelZ;
+                                tileMin = Math.min(tileMin, pixelZ);
+                                span[i] = alpha
+                                        | (int) (r * inverseArea2) << 16
+                                        | (int) (g * inverseArea2) << 8
+                                        | (int) (b * inverseArea2);
+                                drawn++;
+                            } else {
+                                // Keep what is there, the span is written back in one piece
+                                if (pixels == null) {
+                                    span[i] = image.getRGB(x, y);
+                                }
+                                rejected++;
+                            }
+                            i++;
+                            d++;
+                            w0 += stepX0;
+                            w1 += stepX1;
+                            w2 += stepX2;
+                            r += stepXR;
+                            g += stepXG;
+                            b += stepXB;
+                            z += stepXZ;
+                            zd += stepXZd;
+                            x++;
+                        }
+                    }
+
+                    if (pixels == null && x > spanStartX) {
+                        image.setRGB(spanStartX, y, x - spanStartX, 1, span, 0, x - spanStartX);
+                    }
+
+                    lineW0 += stepY0;
+                    lineW1 += stepY1;
+                    lineW2 += stepY2;
+                    lineR += stepYR;
+                    lineG += stepYG;
+                    lineB += stepYB;
+                    lineZ += stepYZ;
+                    lineZd += stepYZd;
+                }
 
-        for (int i = 0; i < 3; i++) {
-            r[i] = colors[i].getRed();
-            g[i] = colors[i].getGreen();
-            b[i] = colors[i].getBlue();
+                if (drawn > 0) {
+                    depth.tileMin[tile] = tileMin;
+                    depth.tileMaxStale[tile] = true;
+                    shaded += drawn;
+                }
+            }
+
+            rowW0 += (rows + 1) * stepY0;
+            rowW1 += (rows + 1) * stepY1;
+            rowW2 += (rows + 1) * stepY2;
+            rowR += (rows + 1) * stepYR;
+            rowG += (rows + 1) * stepYG;
+            rowB += (rows + 1) * stepYB;
+            rowZ += (rows + 1) * stepYZ;
+            rowZd += (rows + 1) * stepYZd;
+        }
+
+        if (depth != null) {
+            depth.record(shaded, rejected, tested, culled);
+        }
+        if (blocks != null) {
+            blocks.record(rejectedBlocks, acceptedBlocks, partialBlocks);
         }
+    }
 
-        // Linear interpolation
-        int interpR = (int)(r[0] * baryCoords[0] + r[1] * baryCoords[1] + r[2] * baryCoords[2]);
-        int interpG = (int)(g[0] * baryCoords[0] + g[1] * baryCoords[1] + g[2] * baryCoords[2]);
-        int interpB = (int)(b[0] * baryCoords[0] + b[1] * baryCoords[1] + b[2] * baryCoords[2]);
+    // -1 if the block of columns + 1 by rows + 1 pixels whose top-left pixel has the edge
+    // functions w0, w1, w2 is outside an edge, 1 if it is inside all three, 0 otherwise.
+    // w is linear, so over the block it is largest and smallest at corners.
+    private static int blockKind(long w0, long w1, long w2, long columns, long rows,
+                                 long stepX0, long stepY0, long stepX1, long stepY1, long stepX2, long stepY2) {
+        if (w0 + Math.max(columns * stepX0, 0) + Math.max(rows * stepY0, 0) < 0
+                || w1 + Math.max(columns * stepX1, 0) + Math.max(rows * stepY1, 0) < 0
+                || w2 + Math.max(columns * stepX2, 0) + Math.max(rows * stepY2, 0) < 0) {
+            return -1;
+        }
+        if (w0 + Math.min(columns * stepX0, 0) + Math.min(rows * stepY0, 0) >= 0
+                && w1 + Math.min(columns * stepX1, 0) + Math.min(rows * stepY1, 0) >= 0
+                && w2 + Math.min(columns * stepX2, 0) + Math.min(rows * stepY2, 0) >= 0) {
+            return 1;
+        }
+        return 0;
+    }
 
-        interpR = Math.min(255, Math.max(0, interpR));
-        interpG = Math.min(255, Math.max(0, interpG));
-        interpB = Math.min(255, Math.max(0, interpB));
+    // Whether the edge with these edge function increments is a left edge (w grows to the
+    // right, so the triangle is right of it) or a top edge (horizontal, w grows downwards)
+    private static boolean isTopLeft(long stepX, long stepY) {
+        return stepX > 0 || (stepX == 0 && stepY > 0);
+    }
 
-        return new Color(interpR, interpG, interpB);
+    // Pixel array of a TYPE_INT_RGB / TYPE_INT_ARGB image (packed 0xAARRGGBB), null for other types
+    private static int[] packedPixels(BufferedImage image) {
+        int type = image.getType();
+        if ((type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+                || !(image.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+            return null;
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
     }
 
     public int[] getXPts() {
@@ -151,4 +503,12 @@ public class Triangle {
         return yPts;
     }
 
+    public float[] getZPts() {
+        return zPts;
+    }
+
+    public Color[] getColors() {
+        return colors;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+import java.awt.*;
+import java.util.Arrays;
+
+// Many triangles in flat arrays: triangle i has its points, in 28.4 fixed point (1/16 pixel),
+// at x[3 * i] .. x[3 * i + 2], y[3 * i] .. y[3 * i + 2], their depths (DepthBuffer fixed point) at z[3 * i] .. z[3 * i + 2]
+// and their colors, packed 0xRRGGBB, at rgb[3 * i] .. rgb[3 * i + 2].
+// Rendering walks the arrays front to back instead of following a Triangle object and its
+// three arrays per triangle. clear() keeps the arrays, so refilling a batch of the same size
+// allocates nothing.
+//
+// A subpixel precise batch is drawn with pixel center sampling and the top-left fill rule
+// (see Triangle.rasterize), so a mesh covers every pixel once; points can then be given
+// with a fraction (addSubpixel). Otherwise it is drawn like Triangle objects.
+public class TriangleBatch {
+    // Read directly by Triangle and TileRasterizer; only the first 3 * size entries are used
+    int[] x;
+    int[] y;
+    int[] z;
+    int[] rgb;
+    private int size;
+    private boolean subpixelPrecise;
+
+    public TriangleBatch() {
+        this(16);
+    }
+
+    public TriangleBatch(int capacity) {
+        x = new int[Math.max(1, capacity) * 3];
+        y = new int[x.length];
+        z = new int[x.length];
+        rgb = new int[x.length];
+    }
+
+    public void add(int x1, int y1, int x2, int y2, int x3, int y3, int rgb1, int rgb2, int rgb3) {
+        add(x1, y1, 0, x2, y2, 0, x3, y3, 0, rgb1, rgb2, rgb3);
+    }
+
+    public void add(int x1, int y1, int x2, int y2, int x3, int y3, Color c1, Color c2, Color c3) {
+        add(x1, y1, x2, y2, x3, y3, c1.getRGB(), c2.getRGB(), c3.getRGB());
+    }
+
+    // Depths from 0 (nearest) to 1 (farthest)
+    public void add(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3,
+                    int rgb1, int rgb2, int rgb3) {
+        addFixed(x1 << Triangle.SUBPIXEL_BITS, y1 << Triangle.SUBPIXEL_BITS, z1,
+                x2 << Triangle.SUBPIXEL_BITS, y2 << Triangle.SUBPIXEL_BITS, z2,
+                x3 << Triangle.SUBPIXEL_BITS, y3 << Triangle.SUBPIXEL_BITS, z3, rgb1, rgb2, rgb3);
+    }
+
+    // Points with a fraction, rounded to 1/16 pixel
+    public void addSubpixel(float x1, float y1, float z1, float x2, float y2, float z2, float x3, float y3, float z3,
+                            int rgb1, int rgb2, int rgb3) {
+        addFixed(Math.round(x1 * Triangle.SUBPIXEL_SCALE), Math.round(y1 * Triangle.SUBPIXEL_SCALE), z1,
+                Math.round(x2 * Triangle.SUBPIXEL_SCALE), Math.round(y2 * Triangle.SUBPIXEL_SCALE), z2,
+                Math.round(x3 * Triangle.SUBPIXEL_SCALE), Math.round(y3 * Triangle.SUBPIXEL_SCALE), z3, rgb1, rgb2, rgb3);
+    }
+
+    private void addFixed(int x1, int y1, float z1, int x2, int y2, float z2, int x3, int y3, float z3,
+                          int rgb1, int rgb2, int rgb3) {
+        if (size * 3 == x.length) {
+            ensureCapacity(size * 2);
+        }
+        int i = size * 3;
+        x[i] = x1;
+        x[i + 1] = x2;
+        x[i + 2] = x3;
+        y[i] = y1;
+        y[i + 1] = y2;
+        y[i + 2] = y3;
+        z[i] = DepthBuffer.toFixed(z1);
+        z[i + 1] = DepthBuffer.toFixed(z2);
+        z[i + 2] = DepthBuffer.toFixed(z3);
+        rgb[i] = rgb1 & 0xFFFFFF;
+        rgb[i + 1] = rgb2 & 0xFFFFFF;
+        rgb[i + 2] = rgb3 & 0xFFFFFF;
+        size++;
+    }
+
+    public void add(Triangle triangle) {
+        int[] xPts = triangle.getXPts();
+        int[] yPts = triangle.getYPts();
+        float[] zPts = triangle.getZPts();
+        Color[] colors = triangle.getColors();
+        add(xPts[0], yPts[0], zPts[0], xPts[1], yPts[1], zPts[1], xPts[2], yPts[2], zPts[2],
+                colors[0].getRGB(), colors[1].getRGB(), colors[2].getRGB());
+    }
+
+    // Makes room for at least capacity triangles
+    public void ensureCapacity(int capacity) {
+        if (capacity * 3 > x.length) {
+            x = Arrays.copyOf(x, capacity * 3);
+            y = Arrays.copyOf(y, capacity * 3);
+            z = Arrays.copyOf(z, capacity * 3);
+            rgb = Arrays.copyOf(rgb, capacity * 3);
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean isSubpixelPrecise() {
+        return subpixelPrecise;
+    }
+
+    public void setSubpixelPrecise(boolean subpixelPrecise) {
+        this.subpixelPrecise = subpixelPrecise;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Point (0, 1 or 2) of triangle i
+    public float getX(int i, int point) {
+        return (float) x[i * 3 + point] / Triangle.SUBPIXEL_SCALE;
+    }
+
+    public float getY(int i, int point) {
+        return (float) y[i * 3 + point] / Triangle.SUBPIXEL_SCALE;
+    }
+
+    public float getZ(int i, int point) {
+        return (float) z[i * 3 + point] / DepthBuffer.FAR;
+    }
+
+    public int getRGB(int i, int point) {
+        return rgb[i * 3 + point];
+    }
+
+    // Triangle i as a Triangle object (allocates, for callers that need one), with its points
+    // rounded down to whole pixels
+    public Triangle get(int i) {
+        int p = i * 3;
+        int bits = Triangle.SUBPIXEL_BITS;
+        return new Triangle(x[p] >> bits, y[p] >> bits, getZ(i, 0), x[p + 1] >> bits, y[p + 1] >> bits, getZ(i, 1),
+                x[p + 2] >> bits, y[p + 2] >> bits, getZ(i, 2),
+                new Color(rgb[p]), new Color(rgb[p + 1]), new Color(rgb[p + 2]));
+    }
+}
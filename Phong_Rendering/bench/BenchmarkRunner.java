@@ -0,0 +1,28 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// JMH benchmarks for the raytracer hot path. They live outside src/ so the raytracer
+// itself keeps no dependencies. With the JMH 1.37 jars (jmh-core, jmh-generator-annprocess,
+// jopt-simple, commons-math3) in lib/:
+//   javac -cp "lib/*" -d out src/*.java bench/*.java
+//   javac --add-modules jdk.incubator.vector -cp out -d out vector/*.java   (for PacketBenchmark)
+//   java -cp "out:lib/*" bench.BenchmarkRunner [JMH options, e.g. RenderBenchmark -p lightCount=8]
+// Every run reports throughput plus the GC profiler's allocation rate (gc.alloc.rate.norm
+// is bytes allocated per operation, which should stay at 0 outside RenderBenchmark).
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Full frames of a many-sphere scene traced one ray at a time, in packets with the scalar
+// fallback, and in SIMD packets (needs the vector/ sources compiled, see BenchmarkRunner)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class PacketBenchmark {
+
+    @Param({"none", "scalar", "vector"})
+    public String tracer;
+
+    @Param({"1000", "100000"})
+    public int sphereCount;
+
+    private Target target;
+
+    @Setup
+    public void setUp() throws Exception {
+        target = Target.create();
+        target.loadSpheres(800, 600, sphereCount);
+        target.setPacketTracer(tracer);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.close();
+    }
+
+    @Benchmark
+    public Object render() {
+        return target.renderFrame();
+    }
+}
@@ -0,0 +1,159 @@
+import bench.Target;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Random;
+
+// Default-package side of the benchmarks, see bench.Target
+public class PhongTarget implements Target {
+
+    private final PhongRaytracer raytracer = new PhongRaytracer();
+
+    private final Material material = new Material(
+            new Color(0.1f, 0.3f, 0.8f), new Color(0.8f, 0.8f, 0.9f),
+            new Color(0.1f, 0.3f, 0.8f), Color.BLACK, 50);
+    private final Sphere sphere = new Sphere(new Vector3(0, 0, 0), 1.0, material);
+    private final Ray hitRay = new Ray().set(0.3, 0.2, 4, 0, 0, -1);
+    private final Ray missRay = new Ray().set(1.5, 0.2, 4, 0, 0, -1);
+
+    // A shaded point on the front of the sphere, seen along -z
+    private final TraceContext context = new TraceContext();
+    private final float[] color = new float[3];
+    private double lightX = 2.0;
+
+    public PhongTarget() {
+        raytracer.setHeadless(true);
+        context.ray.set(0.3, 0.2, 4, 0, 0, -1);
+        context.hitPoint.set(0.3, 0.2, Math.sqrt(1 - 0.3 * 0.3 - 0.2 * 0.2));
+        context.normal.set(context.hitPoint);
+    }
+
+    @Override
+    public void loadScene(int width, int height, int lightCount) throws IOException {
+        File file = File.createTempFile("phong-bench-", ".txt");
+        file.deleteOnExit();
+
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println(width + " " + height);
+            out.println(new File(file.getParentFile(), "phong-bench.png").getPath());
+            out.println("0.2 0.2 0.2");
+            out.println("0.0 0.0 0.0 1.0");
+            out.println("0.1 0.3 0.8");
+            out.println("0.8 0.8 0.9");
+            out.println("0.1 0.3 0.8");
+            out.println("0.0 0.0 0.0");
+            out.println("50.0");
+            out.println("0.01 0.1 1.0");
+            out.println(lightCount);
+            // Lights on a circle around the sphere, in front of it
+            for (int i = 0; i < lightCount; i++) {
+                double angle = 2 * Math.PI * i / lightCount;
+                out.printf(Locale.ROOT, "%f %f 2.0 0.5 0.5 0.5%n", 3 * Math.cos(angle), 3 * Math.sin(angle));
+            }
+        }
+
+        if (!raytracer.loadScene(file.getPath())) {
+            throw new IOException("Could not load benchmark scene " + file);
+        }
+        context.resetOccluderCache(lightCount);
+    }
+
+    @Override
+    public void loadSpheres(int width, int height, int sphereCount) throws IOException {
+        File file = File.createTempFile("phong-bench-", ".txt");
+        file.deleteOnExit();
+        Random random = new Random(42);
+
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println(width + " " + height);
+            out.println(new File(file.getParentFile(), "phong-bench.png").getPath());
+            out.println("0.2 0.2 0.2");
+            out.println(sphereCount);
+            for (int i = 0; i < sphereCount; i++) {
+                out.printf(Locale.ROOT, "%f %f %f %f%n", random.nextDouble() * 2 - 1, random.nextDouble() * 1.5 - 0.75,
+                        -random.nextDouble() * 4, 0.01 + random.nextDouble() * 0.05);
+                out.printf(Locale.ROOT, "%f %f %f%n", random.nextFloat(), random.nextFloat(), random.nextFloat());
+                out.println("0.8 0.8 0.8");
+                out.println("0.1 0.1 0.1");
+                out.println("0.0 0.0 0.0");
+                out.println("30.0");
+            }
+            out.println("0.01 0.1 1.0");
+            out.println("1");
+            out.println("2.0 2.0 2.0 0.8 0.8 0.8");
+        }
+
+        if (!raytracer.loadScene(file.getPath())) {
+            throw new IOException("Could not load benchmark scene " + file);
+        }
+    }
+
+    @Override
+    public void setPacketTracer(String tracer) {
+        switch (tracer) {
+            case "none":
+                raytracer.setPacketTracer(null);
+                break;
+            case "scalar":
+                raytracer.setPacketTracer(new ScalarPacketTracer());
+                break;
+            case "vector":
+                PacketTracer packetTracer = PacketTracer.create();
+                if (packetTracer instanceof ScalarPacketTracer) {
+                    throw new IllegalStateException("VectorPacketTracer not available, see vector/VectorPacketTracer.java");
+                }
+                raytracer.setPacketTracer(packetTracer);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown packet tracer: " + tracer);
+        }
+    }
+
+    @Override
+    public double intersectHit() {
+        return sphere.intersect(hitRay);
+    }
+
+    @Override
+    public double intersectMiss() {
+        return sphere.intersect(missRay);
+    }
+
+    @Override
+    public float[] phongIllumination() {
+        // The generated scene has a single material
+        raytracer.calculatePhongIllumination(0, context, color, 0);
+        return color;
+    }
+
+    @Override
+    public double attenuation() {
+        return raytracer.calculateAttenuation(2.5, 0.01, 0.1, 1.0);
+    }
+
+    @Override
+    public Object renderFrame() {
+        return raytracer.renderFrame();
+    }
+
+    @Override
+    public void renderWithGBuffer() {
+        raytracer.setGBuffer(true);
+        raytracer.render();
+    }
+
+    @Override
+    public Object relightFrame() {
+        lightX = -lightX;
+        raytracer.setLight(0, new Vector3(lightX, 0.5, 2.0), new Color(0.5f, 0.5f, 0.5f));
+        return raytracer.relightFrame();
+    }
+
+    @Override
+    public void close() {
+        raytracer.close();
+    }
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Reshading a kept G-buffer after a light moved, against tracing the full frame again
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelightBenchmark {
+
+    @Param({"800x600", "3840x2160"})
+    public String resolution;
+
+    @Param({"1", "8"})
+    public int lightCount;
+
+    private Target target;
+
+    @Setup
+    public void setUp() throws Exception {
+        String[] size = resolution.split("x");
+        target = Target.create();
+        target.loadScene(Integer.parseInt(size[0]), Integer.parseInt(size[1]), lightCount);
+        target.renderWithGBuffer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.close();
+    }
+
+    @Benchmark
+    public Object render() {
+        return target.renderFrame();
+    }
+
+    @Benchmark
+    public Object relight() {
+        return target.relightFrame();
+    }
+}
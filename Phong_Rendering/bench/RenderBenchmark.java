@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Full-frame tracing (without PNG encoding) at several resolutions and light counts
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"320x240", "800x600", "1920x1080"})
+    public String resolution;
+
+    @Param({"1", "8", "64"})
+    public int lightCount;
+
+    private Target target;
+
+    @Setup
+    public void setUp() throws Exception {
+        String[] size = resolution.split("x");
+        target = Target.create();
+        target.loadScene(Integer.parseInt(size[0]), Integer.parseInt(size[1]), lightCount);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.close();
+    }
+
+    @Benchmark
+    public Object render() {
+        return target.renderFrame();
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShadingBenchmark {
+
+    @Param({"1", "8", "64"})
+    public int lightCount;
+
+    private Target target;
+
+    @Setup
+    public void setUp() throws Exception {
+        target = Target.create();
+        target.loadScene(64, 64, lightCount);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.close();
+    }
+
+    @Benchmark
+    public float[] phongIllumination() {
+        return target.phongIllumination();
+    }
+
+    @Benchmark
+    public double attenuation() {
+        return target.attenuation();
+    }
+}
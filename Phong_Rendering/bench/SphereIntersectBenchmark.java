@@ -0,0 +1,36 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SphereIntersectBenchmark {
+
+    private Target target;
+
+    @Setup
+    public void setUp() throws Exception {
+        target = Target.create();
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.close();
+    }
+
+    @Benchmark
+    public double hit() {
+        return target.intersectHit();
+    }
+
+    @Benchmark
+    public double miss() {
+        return target.intersectMiss();
+    }
+}
@@ -0,0 +1,38 @@
+package bench;
+
+// JMH refuses benchmarks in the default package, and the raytracer lives there, so the
+// benchmarks drive it through this interface. The only implementation is the
+// default-package PhongTarget (bench/PhongTarget.java); calls stay monomorphic and inline.
+public interface Target {
+
+    // Loads a generated scene: a single sphere lit by lightCount lights
+    void loadScene(int width, int height, int lightCount) throws Exception;
+
+    // Loads a generated scene of random spheres in front of the camera, lit by one light
+    void loadSpheres(int width, int height, int sphereCount) throws Exception;
+
+    // "none" traces one ray at a time, "scalar" and "vector" trace packets with that tracer
+    void setPacketTracer(String tracer);
+
+    double intersectHit();
+
+    double intersectMiss();
+
+    float[] phongIllumination();
+
+    double attenuation();
+
+    Object renderFrame();
+
+    // Renders once with the G-buffer kept, so relightFrame() can reshade it
+    void renderWithGBuffer();
+
+    // Moves the first light a little and reshades the kept G-buffer
+    Object relightFrame();
+
+    void close();
+
+    static Target create() throws ReflectiveOperationException {
+        return (Target) Class.forName("PhongTarget").getDeclaredConstructor().newInstance();
+    }
+}
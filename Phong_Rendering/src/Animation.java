@@ -0,0 +1,145 @@
+import java.awt.*;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+// Keyframed camera and light parameters for rendering a frame sequence of one scene
+// (see animation_format.txt). Values between keyframes are interpolated linearly,
+// frames before the first or after the last keyframe hold its values.
+class Animation {
+    // Values per light in a keyframe: position XYZ, intensity RGB
+    private static final int LIGHT_VALUES = 6;
+
+    private final int frameCount;
+    private final String outputPattern;
+    // Frame number of each keyframe, ascending
+    private final int[] keyframes;
+    // Camera offset (3 values) per keyframe
+    private final double[][] cameras;
+    // LIGHT_VALUES per light, per keyframe
+    private final double[][] lightValues;
+
+    private Animation(int frameCount, String outputPattern, int[] keyframes, double[][] cameras, double[][] lightValues) {
+        this.frameCount = frameCount;
+        this.outputPattern = outputPattern;
+        this.keyframes = keyframes;
+        this.cameras = cameras;
+        this.lightValues = lightValues;
+    }
+
+    // Reads an animation for a scene with the given number of lights
+    public static Animation load(String filename, int lightCount) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            int frameCount = Integer.parseInt(readLine(reader));
+            String outputPattern = readLine(reader);
+            int keyframeCount = Integer.parseInt(readLine(reader));
+            if (frameCount < 1 || keyframeCount < 1) {
+                throw new IOException("Animation needs at least one frame and one keyframe");
+            }
+
+            int[] keyframes = new int[keyframeCount];
+            double[][] cameras = new double[keyframeCount][];
+            double[][] lightValues = new double[keyframeCount][lightCount * LIGHT_VALUES];
+            for (int k = 0; k < keyframeCount; k++) {
+                keyframes[k] = Integer.parseInt(readLine(reader));
+                if (k > 0 && keyframes[k] <= keyframes[k - 1]) {
+                    throw new IOException("Keyframes must be in ascending frame order");
+                }
+                cameras[k] = parseValues(readLine(reader), 3);
+
+                for (int i = 0; i < lightCount; i++) {
+                    double[] light = parseValues(readLine(reader), LIGHT_VALUES);
+                    System.arraycopy(light, 0, lightValues[k], i * LIGHT_VALUES, LIGHT_VALUES);
+                }
+            }
+
+            return new Animation(frameCount, outputPattern, keyframes, cameras, lightValues);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number: " + e.getMessage());
+        }
+    }
+
+    private static String readLine(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("Unexpected end of animation file");
+        }
+        return line.trim();
+    }
+
+    private static double[] parseValues(String line, int count) throws IOException {
+        String[] parts = line.split("\\s+");
+        if (parts.length < count) {
+            throw new IOException("Expected " + count + " values: " + line);
+        }
+
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Double.parseDouble(parts[i]);
+        }
+        return values;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    // Output file of a frame: the pattern formatted with the frame number
+    public String getOutputFile(int frame) {
+        return String.format(outputPattern, frame);
+    }
+
+    public Vector3 cameraAt(int frame, Vector3 out) {
+        int k = segment(frame);
+        double t = blend(frame, k);
+        double[] from = cameras[k];
+        double[] to = cameras[Math.min(k + 1, keyframes.length - 1)];
+        return out.set(lerp(from[0], to[0], t), lerp(from[1], to[1], t), lerp(from[2], to[2], t));
+    }
+
+    // Moves the scene lights to their state at the given frame. Intensities are clamped
+    // and quantized the same way the scene loader does it.
+    public void applyLights(int frame, List<Light> lights) {
+        int k = segment(frame);
+        double t = blend(frame, k);
+        double[] from = lightValues[k];
+        double[] to = lightValues[Math.min(k + 1, keyframes.length - 1)];
+
+        for (int i = 0; i < lights.size(); i++) {
+            Light light = lights.get(i);
+            int o = i * LIGHT_VALUES;
+            light.position.set(lerp(from[o], to[o], t), lerp(from[o + 1], to[o + 1], t), lerp(from[o + 2], to[o + 2], t));
+            light.intensity = new Color(
+                    channel(lerp(from[o + 3], to[o + 3], t)),
+                    channel(lerp(from[o + 4], to[o + 4], t)),
+                    channel(lerp(from[o + 5], to[o + 5], t)));
+        }
+    }
+
+    private static float channel(double value) {
+        return Math.max(0.0f, Math.min(1.0f, (float) value));
+    }
+
+    // Index of the last keyframe at or before the frame (0 before the first keyframe)
+    private int segment(int frame) {
+        int k = 0;
+        while (k + 1 < keyframes.length && keyframes[k + 1] <= frame) {
+            k++;
+        }
+        return k;
+    }
+
+    // Position of the frame between keyframe k and the next one (0..1)
+    private double blend(int frame, int k) {
+        if (k + 1 >= keyframes.length || frame <= keyframes[k]) {
+            return 0;
+        }
+        return (double) (frame - keyframes[k]) / (keyframes[k + 1] - keyframes[k]);
+    }
+
+    // Exact at t = 0 so keyframe values come through unchanged
+    private static double lerp(double from, double to, double t) {
+        return t == 0 ? from : from + (to - from) * t;
+    }
+}
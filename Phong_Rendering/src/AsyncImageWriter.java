@@ -0,0 +1,80 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Encodes PNG files on a background thread, so rendering of the next frame can
+// start while the previous one is still being compressed. The thread is a daemon: call
+// close() (or flush()) before exiting, or images still queued are lost.
+class AsyncImageWriter {
+    // At most this many images wait for the encoder; beyond that the caller encodes itself
+    private static final int MAX_PENDING = 2;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING),
+            runnable -> {
+                Thread thread = new Thread(runnable, "png-encoder");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    // Time spent compressing and writing, in nanoseconds
+    private final LongAdder encodeNanos;
+    // Images handed to write() and not yet written, queued, being encoded or encoded by the
+    // caller (guarded by this)
+    private int pending;
+
+    public AsyncImageWriter() {
+        this(new LongAdder());
+    }
+
+    public AsyncImageWriter(LongAdder encodeNanos) {
+        this.encodeNanos = encodeNanos;
+    }
+
+    public Future<?> write(BufferedImage image, String fileName) {
+        synchronized (this) {
+            pending++;
+        }
+        return executor.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                ImageIO.write(image, "PNG", new File(fileName));
+                encodeNanos.add(System.nanoTime() - start);
+                System.out.println("Image saved to " + fileName);
+            } catch (IOException e) {
+                System.err.println("Error saving image: " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    pending--;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    // Waits for every image passed to write() so far to be written, wherever it is encoded
+    public synchronized void flush() {
+        try {
+            while (pending > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits for all queued images to be written and stops the encoder thread
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
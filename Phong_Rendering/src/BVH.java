@@ -0,0 +1,288 @@
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+// Bounding volume hierarchy over the scene spheres (see BVHBuilder). Nodes and sphere data
+// live in flat buffers, so closest-hit queries never touch Sphere objects. The buffers are
+// either wrapped arrays from the builder or views straight into a memory-mapped scene file.
+// The node and sphere buffers are package-private for the packet tracers (see PacketTracer).
+class BVH {
+    // 6 doubles per node: minX, minY, minZ, maxX, maxY, maxZ
+    final DoubleBuffer nodeBounds;
+    // 2 ints per node: (first sphere, count) for leaves, (left child, 0) for inner nodes.
+    // The right child is always stored right after the left one.
+    final IntBuffer nodeData;
+    private final int nodeCount;
+    private final int depth;
+
+    // 4 doubles per sphere in leaf order: centerX, centerY, centerZ, radius
+    final DoubleBuffer spheres;
+    // Leaf order -> index in the scene sphere list
+    private final IntBuffer sphereIndices;
+
+    BVH(DoubleBuffer nodeBounds, IntBuffer nodeData, DoubleBuffer spheres, IntBuffer sphereIndices,
+        int nodeCount, int depth) {
+        this.nodeBounds = nodeBounds;
+        this.nodeData = nodeData;
+        this.spheres = spheres;
+        this.sphereIndices = sphereIndices;
+        this.nodeCount = nodeCount;
+        this.depth = depth;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getSphereCount() {
+        return sphereIndices.limit();
+    }
+
+    // Bounds of the whole scene as minX, minY, minZ, maxX, maxY, maxZ (the root node)
+    public double[] getBounds() {
+        double[] bounds = new double[6];
+        if (nodeCount > 0) {
+            nodeBounds.get(0, bounds);
+        }
+        return bounds;
+    }
+
+    // Scene index of the sphere at a leaf-order index
+    public int getSphereIndex(int sphere) {
+        return sphereIndices.get(sphere);
+    }
+
+    // Center of the sphere at a leaf-order index
+    public Vector3 getCenter(int sphere, Vector3 out) {
+        int offset = sphere * 4;
+        return out.set(spheres.get(offset), spheres.get(offset + 1), spheres.get(offset + 2));
+    }
+
+    // Closest hit along the ray, or -1 if nothing is hit. The scene index of the hit
+    // sphere is stored in context.hitIndex and its leaf-order index in context.hitSphere.
+    public double intersect(Ray ray, TraceContext context) {
+        context.hitIndex = -1;
+        context.hitSphere = -1;
+        if (nodeCount == 0) {
+            return -1.0;
+        }
+
+        double originX = ray.origin.x, originY = ray.origin.y, originZ = ray.origin.z;
+        double dirX = ray.direction.x, dirY = ray.direction.y, dirZ = ray.direction.z;
+        double invX = 1.0 / dirX, invY = 1.0 / dirY, invZ = 1.0 / dirZ;
+
+        double closest = Double.POSITIVE_INFINITY;
+        int closestSphere = -1;
+
+        int[] stack = context.traversalStack(depth);
+        double[] stackEntries = context.traversalEntries;
+        int stackSize = 0;
+
+        double rootEntry = entryDistance(0, originX, originY, originZ, dirX, dirY, dirZ, invX, invY, invZ);
+        context.boxTests++;
+        if (rootEntry < closest) {
+            stack[stackSize] = 0;
+            stackEntries[stackSize++] = rootEntry;
+        }
+
+        while (stackSize > 0) {
+            stackSize--;
+            if (stackEntries[stackSize] >= closest) {
+                continue;
+            }
+            int node = stack[stackSize];
+            int count = nodeData.get(node * 2 + 1);
+
+            if (count > 0) {
+                int first = nodeData.get(node * 2);
+                context.sphereTests += count;
+                for (int i = first; i < first + count; i++) {
+                    int offset = i * 4;
+                    double t = Sphere.intersect(originX, originY, originZ, dirX, dirY, dirZ,
+                            spheres.get(offset), spheres.get(offset + 1), spheres.get(offset + 2),
+                            spheres.get(offset + 3));
+                    if (t > 0 && t < closest) {
+                        closest = t;
+                        closestSphere = i;
+                    }
+                }
+            } else {
+                int left = nodeData.get(node * 2);
+                int right = left + 1;
+                double leftEntry = entryDistance(left, originX, originY, originZ, dirX, dirY, dirZ, invX, invY, invZ);
+                double rightEntry = entryDistance(right, originX, originY, originZ, dirX, dirY, dirZ, invX, invY, invZ);
+                context.boxTests += 2;
+
+                // Push the farther child first so the nearer one is visited next
+                if (leftEntry > rightEntry) {
+                    int swapNode = left;
+                    left = right;
+                    right = swapNode;
+                    double swapEntry = leftEntry;
+                    leftEntry = rightEntry;
+                    rightEntry = swapEntry;
+                }
+                if (rightEntry < closest) {
+                    stack[stackSize] = right;
+                    stackEntries[stackSize++] = rightEntry;
+                }
+                if (leftEntry < closest) {
+                    stack[stackSize] = left;
+                    stackEntries[stackSize++] = leftEntry;
+                }
+            }
+        }
+
+        if (closestSphere < 0) {
+            return -1.0;
+        }
+        context.hitIndex = sphereIndices.get(closestSphere);
+        context.hitSphere = closestSphere;
+        return closest;
+    }
+
+    // Any-hit query: returns the leaf-order index of some sphere hit closer than maxDistance,
+    // or -1 if the segment is clear. Traversal stops at the first blocker found.
+    public int findOccluder(Ray ray, double maxDistance, TraceContext context) {
+        if (nodeCount == 0) {
+            return -1;
+        }
+
+        double originX = ray.origin.x, originY = ray.origin.y, originZ = ray.origin.z;
+        double dirX = ray.direction.x, dirY = ray.direction.y, dirZ = ray.direction.z;
+        double invX = 1.0 / dirX, invY = 1.0 / dirY, invZ = 1.0 / dirZ;
+
+        int[] stack = context.traversalStack(depth);
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            context.boxTests++;
+            if (entryDistance(node, originX, originY, originZ, dirX, dirY, dirZ, invX, invY, invZ) >= maxDistance) {
+                continue;
+            }
+
+            int count = nodeData.get(node * 2 + 1);
+            if (count > 0) {
+                int first = nodeData.get(node * 2);
+                for (int i = first; i < first + count; i++) {
+                    context.sphereTests++;
+                    if (occludedBy(i, ray, maxDistance)) {
+                        return i;
+                    }
+                }
+            } else {
+                int left = nodeData.get(node * 2);
+                stack[stackSize++] = left + 1;
+                stack[stackSize++] = left;
+            }
+        }
+        return -1;
+    }
+
+    // Does the sphere at this leaf-order index block the ray before maxDistance?
+    public boolean occludedBy(int sphere, Ray ray, double maxDistance) {
+        int offset = sphere * 4;
+        double t = Sphere.intersect(ray.origin.x, ray.origin.y, ray.origin.z,
+                ray.direction.x, ray.direction.y, ray.direction.z,
+                spheres.get(offset), spheres.get(offset + 1), spheres.get(offset + 2), spheres.get(offset + 3));
+        return t > 0 && t < maxDistance;
+    }
+
+    // Distance at which the ray enters the node box (clamped to 0), or +infinity if it misses
+    private double entryDistance(int node, double originX, double originY, double originZ,
+                                 double dirX, double dirY, double dirZ,
+                                 double invX, double invY, double invZ) {
+        int offset = node * 6;
+        double near = 0;
+        double far = Double.POSITIVE_INFINITY;
+
+        // Axes the ray runs parallel to only need a containment check
+        if (dirX == 0) {
+            if (originX < nodeBounds.get(offset) || originX > nodeBounds.get(offset + 3)) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (nodeBounds.get(offset) - originX) * invX;
+            double t2 = (nodeBounds.get(offset + 3) - originX) * invX;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        if (dirY == 0) {
+            if (originY < nodeBounds.get(offset + 1) || originY > nodeBounds.get(offset + 4)) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (nodeBounds.get(offset + 1) - originY) * invY;
+            double t2 = (nodeBounds.get(offset + 4) - originY) * invY;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        if (dirZ == 0) {
+            if (originZ < nodeBounds.get(offset + 2) || originZ > nodeBounds.get(offset + 5)) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (nodeBounds.get(offset + 2) - originZ) * invZ;
+            double t2 = (nodeBounds.get(offset + 5) - originZ) * invZ;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+
+        return near <= far ? near : Double.POSITIVE_INFINITY;
+    }
+
+    // Size of the serialized tree in bytes (a multiple of 8)
+    public int byteSize() {
+        int sphereCount = getSphereCount();
+        int bytes = 16 + (nodeCount * 6 + sphereCount * 4) * 8 + (nodeCount * 2 + sphereCount) * 4;
+        return (bytes + 7) & ~7;
+    }
+
+    // Writes the tree at the buffer position: a 16-byte header (node count, depth, sphere count),
+    // then node bounds, sphere data, node data and sphere indices. Doubles come first so
+    // they stay 8-byte aligned.
+    public void writeTo(ByteBuffer out) {
+        int start = out.position();
+        out.putInt(nodeCount).putInt(depth).putInt(getSphereCount()).putInt(0);
+        out.asDoubleBuffer().put(nodeBounds.duplicate().rewind());
+        out.position(out.position() + nodeCount * 6 * 8);
+        out.asDoubleBuffer().put(spheres.duplicate().rewind());
+        out.position(out.position() + getSphereCount() * 4 * 8);
+        out.asIntBuffer().put(nodeData.duplicate().rewind());
+        out.position(out.position() + nodeCount * 2 * 4);
+        out.asIntBuffer().put(sphereIndices.duplicate().rewind());
+        out.position(start + byteSize());
+    }
+
+    // Wraps a tree written by writeTo without copying it: all buffers are views into
+    // the given (usually memory-mapped) buffer. Advances the buffer past the tree.
+    public static BVH map(ByteBuffer in) {
+        int start = in.position();
+        int nodeCount = in.getInt();
+        int depth = in.getInt();
+        int sphereCount = in.getInt();
+        in.getInt();
+
+        DoubleBuffer nodeBounds = view(in, nodeCount * 6 * 8).asDoubleBuffer();
+        DoubleBuffer spheres = view(in, sphereCount * 4 * 8).asDoubleBuffer();
+        IntBuffer nodeData = view(in, nodeCount * 2 * 4).asIntBuffer();
+        IntBuffer sphereIndices = view(in, sphereCount * 4).asIntBuffer();
+
+        BVH bvh = new BVH(nodeBounds, nodeData, spheres, sphereIndices, nodeCount, depth);
+        in.position(start + bvh.byteSize());
+        return bvh;
+    }
+
+    // Next length bytes of the buffer as a separate view with the same byte order
+    private static ByteBuffer view(ByteBuffer buffer, int length) {
+        ByteBuffer view = buffer.slice(buffer.position(), length).order(buffer.order());
+        buffer.position(buffer.position() + length);
+        return view;
+    }
+}
@@ -0,0 +1,230 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+// Builds a BVH over the scene spheres with binned SAH. Works on plain arrays and
+// hands them to the BVH wrapped as buffers.
+class BVHBuilder {
+    private static final int BIN_COUNT = 16;
+    // Nodes with this many spheres or fewer always become leaves
+    private static final int MIN_SPLIT_SIZE = 2;
+    // Leaves are forced to split above this size, even if SAH says otherwise
+    private static final int MAX_LEAF_SIZE = 8;
+    // Cost of one node visit relative to one ray/sphere test
+    private static final double TRAVERSAL_COST = 1.0;
+
+    // Same layouts as in BVH
+    private final double[] nodeBounds;
+    private final int[] nodeData;
+    private int nodeCount;
+    private int depth;
+    private final int[] sphereIndices;
+
+    // Build input, indexed by scene sphere index: centerX, centerY, centerZ, radius
+    private final double[] sourceSpheres;
+
+    private BVHBuilder(double[] sourceSpheres, int sphereCount) {
+        this.sourceSpheres = sourceSpheres;
+        int maxNodes = Math.max(1, 2 * sphereCount - 1);
+        this.nodeBounds = new double[maxNodes * 6];
+        this.nodeData = new int[maxNodes * 2];
+        this.sphereIndices = new int[sphereCount];
+    }
+
+    public static BVH build(List<Sphere> sceneSpheres) {
+        int count = sceneSpheres.size();
+        double[] source = new double[count * 4];
+        for (int i = 0; i < count; i++) {
+            Sphere sphere = sceneSpheres.get(i);
+            source[i * 4] = sphere.center.x;
+            source[i * 4 + 1] = sphere.center.y;
+            source[i * 4 + 2] = sphere.center.z;
+            source[i * 4 + 3] = sphere.radius;
+        }
+
+        BVHBuilder builder = new BVHBuilder(source, count);
+        for (int i = 0; i < count; i++) {
+            builder.sphereIndices[i] = i;
+        }
+        if (count > 0) {
+            builder.nodeCount = 1;
+            builder.buildNode(0, 0, count, 1);
+        }
+
+        // Copy sphere data into leaf order so leaves read contiguous memory
+        double[] spheres = new double[count * 4];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(source, builder.sphereIndices[i] * 4, spheres, i * 4, 4);
+        }
+
+        return new BVH(
+                DoubleBuffer.wrap(builder.nodeBounds, 0, builder.nodeCount * 6).slice(),
+                IntBuffer.wrap(builder.nodeData, 0, builder.nodeCount * 2).slice(),
+                DoubleBuffer.wrap(spheres),
+                IntBuffer.wrap(builder.sphereIndices),
+                builder.nodeCount, builder.depth);
+    }
+
+    private void buildNode(int node, int start, int end, int level) {
+        depth = Math.max(depth, level);
+        int count = end - start;
+
+        // Node bounds and bounds of the sphere centers
+        double[] bounds = emptyBounds();
+        double[] centroidBounds = emptyBounds();
+        for (int i = start; i < end; i++) {
+            int sphere = sphereIndices[i];
+            growBySphere(bounds, sphere);
+            growByPoint(centroidBounds, sourceSpheres[sphere * 4], sourceSpheres[sphere * 4 + 1], sourceSpheres[sphere * 4 + 2]);
+        }
+        System.arraycopy(bounds, 0, nodeBounds, node * 6, 6);
+
+        if (count <= MIN_SPLIT_SIZE) {
+            makeLeaf(node, start, count);
+            return;
+        }
+
+        // Split along the axis where the centers are spread the most
+        int axis = 0;
+        double extent = centroidBounds[3] - centroidBounds[0];
+        for (int a = 1; a < 3; a++) {
+            double axisExtent = centroidBounds[3 + a] - centroidBounds[a];
+            if (axisExtent > extent) {
+                extent = axisExtent;
+                axis = a;
+            }
+        }
+        if (extent <= 0) {
+            // All centers coincide, no plane can separate them
+            makeLeaf(node, start, count);
+            return;
+        }
+
+        // Drop every sphere into one of BIN_COUNT slabs along the axis
+        double binScale = BIN_COUNT / extent;
+        double axisMin = centroidBounds[axis];
+        int[] binCounts = new int[BIN_COUNT];
+        double[][] binBounds = new double[BIN_COUNT][];
+        for (int b = 0; b < BIN_COUNT; b++) {
+            binBounds[b] = emptyBounds();
+        }
+        for (int i = start; i < end; i++) {
+            int sphere = sphereIndices[i];
+            int bin = binIndex(sourceSpheres[sphere * 4 + axis], axisMin, binScale);
+            binCounts[bin]++;
+            growBySphere(binBounds[bin], sphere);
+        }
+
+        // Sweep from the right to get the area and count behind every split plane
+        double[] rightAreas = new double[BIN_COUNT];
+        int[] rightCounts = new int[BIN_COUNT];
+        double[] accumulated = emptyBounds();
+        int accumulatedCount = 0;
+        for (int b = BIN_COUNT - 1; b > 0; b--) {
+            growByBounds(accumulated, binBounds[b]);
+            accumulatedCount += binCounts[b];
+            rightAreas[b] = surfaceArea(accumulated);
+            rightCounts[b] = accumulatedCount;
+        }
+
+        // Sweep from the left and evaluate the SAH cost of splitting after bin b
+        int bestSplit = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        accumulated = emptyBounds();
+        accumulatedCount = 0;
+        for (int b = 0; b < BIN_COUNT - 1; b++) {
+            growByBounds(accumulated, binBounds[b]);
+            accumulatedCount += binCounts[b];
+            if (accumulatedCount == 0 || rightCounts[b + 1] == 0) {
+                continue;
+            }
+            double cost = surfaceArea(accumulated) * accumulatedCount + rightAreas[b + 1] * rightCounts[b + 1];
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSplit = b;
+            }
+        }
+
+        double parentArea = surfaceArea(bounds);
+        double splitCost = TRAVERSAL_COST + (parentArea > 0 ? bestCost / parentArea : count);
+        if (bestSplit < 0 || (splitCost >= count && count <= MAX_LEAF_SIZE)) {
+            makeLeaf(node, start, count);
+            return;
+        }
+
+        // Partition the spheres of this node around the chosen plane
+        int mid = start;
+        for (int i = start; i < end; i++) {
+            int sphere = sphereIndices[i];
+            if (binIndex(sourceSpheres[sphere * 4 + axis], axisMin, binScale) <= bestSplit) {
+                sphereIndices[i] = sphereIndices[mid];
+                sphereIndices[mid] = sphere;
+                mid++;
+            }
+        }
+
+        int left = nodeCount;
+        nodeCount += 2;
+        nodeData[node * 2] = left;
+        nodeData[node * 2 + 1] = 0;
+
+        buildNode(left, start, mid, level + 1);
+        buildNode(left + 1, mid, end, level + 1);
+    }
+
+    private void makeLeaf(int node, int start, int count) {
+        nodeData[node * 2] = start;
+        nodeData[node * 2 + 1] = count;
+    }
+
+    private static int binIndex(double center, double axisMin, double binScale) {
+        return Math.min(BIN_COUNT - 1, (int) ((center - axisMin) * binScale));
+    }
+
+    private static double[] emptyBounds() {
+        return new double[]{
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+    }
+
+    private void growBySphere(double[] bounds, int sphere) {
+        double centerX = sourceSpheres[sphere * 4];
+        double centerY = sourceSpheres[sphere * 4 + 1];
+        double centerZ = sourceSpheres[sphere * 4 + 2];
+        double radius = sourceSpheres[sphere * 4 + 3];
+
+        // Pad a little so rays grazing the sphere are never culled by rounding
+        double pad = 1e-9 * (Math.abs(centerX) + Math.abs(centerY) + Math.abs(centerZ) + radius);
+        double extent = radius + pad;
+        growByPoint(bounds, centerX - extent, centerY - extent, centerZ - extent);
+        growByPoint(bounds, centerX + extent, centerY + extent, centerZ + extent);
+    }
+
+    private static void growByPoint(double[] bounds, double x, double y, double z) {
+        bounds[0] = Math.min(bounds[0], x);
+        bounds[1] = Math.min(bounds[1], y);
+        bounds[2] = Math.min(bounds[2], z);
+        bounds[3] = Math.max(bounds[3], x);
+        bounds[4] = Math.max(bounds[4], y);
+        bounds[5] = Math.max(bounds[5], z);
+    }
+
+    private static void growByBounds(double[] bounds, double[] other) {
+        if (other[0] > other[3]) {
+            return; // Empty bin
+        }
+        growByPoint(bounds, other[0], other[1], other[2]);
+        growByPoint(bounds, other[3], other[4], other[5]);
+    }
+
+    private static double surfaceArea(double[] bounds) {
+        double dx = bounds[3] - bounds[0];
+        double dy = bounds[4] - bounds[1];
+        double dz = bounds[5] - bounds[2];
+        if (dx < 0 || dy < 0 || dz < 0) {
+            return 0;
+        }
+        return 2.0 * (dx * dy + dy * dz + dz * dx);
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Headless batch mode: renders many scene files in one JVM (so later scenes run on
+// warm JIT code) and reports per-scene and total timings. Never opens a window.
+public class BatchRenderer {
+
+    public static void main(String[] args) {
+        // Must be set before any AWT class initializes
+        System.setProperty("java.awt.headless", "true");
+
+        PhongRaytracer raytracer = new PhongRaytracer();
+        raytracer.setHeadless(true);
+
+        List<File> sceneFiles = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                int last = PhongRaytracer.parseOption(raytracer, args, i);
+                if (last >= 0) {
+                    i = last;
+                } else if (args[i].startsWith("--")) {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                } else {
+                    addSceneFiles(new File(args[i]), sceneFiles);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Invalid options: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (sceneFiles.isEmpty()) {
+            System.out.println("Usage: java BatchRenderer [PhongRaytracer options] <scene-file | directory>...");
+            System.exit(1);
+        }
+
+        int rendered = 0;
+        int failed = 0;
+        long totalLoadNanos = 0;
+        long totalRenderNanos = 0;
+        long batchStart = System.nanoTime();
+
+        try {
+            for (File sceneFile : sceneFiles) {
+                long loadStart = System.nanoTime();
+                if (!raytracer.loadScene(sceneFile.getPath())) {
+                    System.err.println("Failed to load scene from: " + sceneFile);
+                    failed++;
+                    continue;
+                }
+                long renderStart = System.nanoTime();
+                raytracer.render();
+                long renderEnd = System.nanoTime();
+
+                totalLoadNanos += renderStart - loadStart;
+                totalRenderNanos += renderEnd - renderStart;
+                rendered++;
+                System.out.printf("%s: load %.1f ms, render %.1f ms%n",
+                        sceneFile.getName(), millis(renderStart - loadStart), millis(renderEnd - renderStart));
+                // With --metrics, one summary per scene next to its output file
+                raytracer.writeMetrics();
+            }
+        } finally {
+            // Waits for the last PNGs to be encoded
+            raytracer.close();
+        }
+
+        long batchNanos = System.nanoTime() - batchStart;
+        System.out.printf("Rendered %d scene(s), %d failed%n", rendered, failed);
+        System.out.printf("Total: load %.1f ms, render %.1f ms, wall %.1f ms (including encoding)%n",
+                millis(totalLoadNanos), millis(totalRenderNanos), millis(batchNanos));
+        if (rendered > 0) {
+            System.out.printf("Average per scene: load %.1f ms, render %.1f ms%n",
+                    millis(totalLoadNanos) / rendered, millis(totalRenderNanos) / rendered);
+        }
+    }
+
+    // A directory contributes every .txt (text) and .bin (compiled) scene inside it, in name order.
+    // Other .txt files living next to the scenes (format.txt, animation_format.txt) are skipped.
+    private static void addSceneFiles(File path, List<File> sceneFiles) {
+        if (path.isDirectory()) {
+            File[] files = path.listFiles(BatchRenderer::isSceneFile);
+            if (files != null) {
+                Arrays.sort(files);
+                sceneFiles.addAll(Arrays.asList(files));
+            }
+        } else {
+            sceneFiles.add(path);
+        }
+    }
+
+    // A compiled scene starts with its magic number, a text scene with its resolution line
+    private static boolean isSceneFile(File file) {
+        String name = file.getName();
+        if (name.endsWith(".bin")) {
+            return PhongRaytracer.isCompiledScene(file.getPath());
+        }
+        if (!name.endsWith(".txt") || !file.isFile()) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line != null && line.trim().matches("\\d+\\s+\\d+");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,58 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// Float32 RGB render target. Shading writes unclamped linear values here and
+// toImage() turns them into 8-bit pixels in a separate pass.
+class FrameBuffer {
+    final int width;
+    final int height;
+    // Image coordinates of the top-left pixel, for buffers covering only part of a frame
+    final int originX;
+    final int originY;
+    // 3 floats per pixel (r, g, b), row by row
+    final float[] rgb;
+
+    public FrameBuffer(int width, int height) {
+        this(width, height, 0, 0);
+    }
+
+    public FrameBuffer(int width, int height, int originX, int originY) {
+        this.width = width;
+        this.height = height;
+        this.originX = originX;
+        this.originY = originY;
+        this.rgb = new float[width * height * 3];
+    }
+
+    public FrameBuffer copy() {
+        FrameBuffer copy = new FrameBuffer(width, height, originX, originY);
+        System.arraycopy(rgb, 0, copy.rgb, 0, rgb.length);
+        return copy;
+    }
+
+    // Offset of the pixel at image coordinates (x, y)
+    public int offset(int x, int y) {
+        return ((y - originY) * width + (x - originX)) * 3;
+    }
+
+    // Tone-map / quantize pass: clamps to [0, 1] and rounds like new Color(r, g, b) did
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        for (int i = 0, offset = 0; i < pixels.length; i++, offset += 3) {
+            pixels[i] = toRGB(offset);
+        }
+        return image;
+    }
+
+    // Packed 8-bit RGB of the pixel at the given offset
+    public int toRGB(int offset) {
+        return (quantize(rgb[offset]) << 16) | (quantize(rgb[offset + 1]) << 8) | quantize(rgb[offset + 2]);
+    }
+
+    private static int quantize(float value) {
+        value = Math.min(1.0f, Math.max(0.0f, value));
+        return (int) (value * 255 + 0.5);
+    }
+}
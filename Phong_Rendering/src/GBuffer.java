@@ -0,0 +1,50 @@
+// Primary-ray hits of one frame: for every pixel the scene index of the sphere that was hit
+// (-1 for a miss), the hit position and the surface normal. As long as the camera stays put,
+// a frame can be reshaded from here without intersecting a single ray.
+class GBuffer {
+    final int width;
+    final int height;
+    // Scene sphere index per pixel, -1 where the primary ray missed
+    final int[] sphere;
+    // 3 doubles per pixel (x, y, z), row by row
+    final double[] position;
+    final double[] normal;
+
+    public GBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.sphere = new int[width * height];
+        this.position = new double[width * height * 3];
+        this.normal = new double[width * height * 3];
+    }
+
+    // Records the hit held by the context (hitIndex, hitPoint, normal) for a pixel
+    public void store(int pixel, TraceContext context) {
+        int offset = pixel * 3;
+        sphere[pixel] = context.hitIndex;
+        position[offset] = context.hitPoint.x;
+        position[offset + 1] = context.hitPoint.y;
+        position[offset + 2] = context.hitPoint.z;
+        normal[offset] = context.normal.x;
+        normal[offset + 1] = context.normal.y;
+        normal[offset + 2] = context.normal.z;
+    }
+
+    public void storeMiss(int pixel) {
+        sphere[pixel] = -1;
+    }
+
+    // Puts a pixel's hit back into the context, returns false if the pixel has none
+    public boolean load(int pixel, TraceContext context) {
+        int hit = sphere[pixel];
+        context.hitIndex = hit;
+        if (hit < 0) {
+            return false;
+        }
+
+        int offset = pixel * 3;
+        context.hitPoint.set(position[offset], position[offset + 1], position[offset + 2]);
+        context.normal.set(normal[offset], normal[offset + 1], normal[offset + 2]);
+        return true;
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+// Distribution of non-negative values in power-of-two buckets: bucket 0 counts zeros,
+// bucket b counts values in [2^(b-1), 2^b - 1]. Not thread-safe; every tracing thread fills
+// its own (in TraceContext) and RenderMetrics merges them under a lock.
+class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    private static int bucket(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[Math.min(bucket(value), BUCKETS - 1)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void add(Histogram other) {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] += other.counts[b];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0.0;
+    }
+
+    // {"count", "sum", "min", "max", "mean", "buckets": [{"le": upper bound, "count"}, ...]},
+    // listing only the buckets up to the highest non-empty one
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\"count\": %d, \"sum\": %d, \"min\": %d, \"max\": %d, \"mean\": %.3f, \"buckets\": [",
+                count, sum, count > 0 ? min : 0, max, getMean()));
+        int last = count > 0 ? bucket(max) : -1;
+        for (int b = 0; b <= last; b++) {
+            long upperBound = b == 0 ? 0 : (1L << b) - 1;
+            json.append(b > 0 ? ", " : "").append("{\"le\": ").append(upperBound)
+                    .append(", \"count\": ").append(counts[b]).append('}');
+        }
+        return json.append("]}").toString();
+    }
+}
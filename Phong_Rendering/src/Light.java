@@ -0,0 +1,38 @@
+import java.awt.*;
+
+class Light {
+    Vector3 position;
+    Color intensity;
+    double c2;
+    double c1;
+    double c0;
+
+    public Light(Vector3 position, Color intensity, double c2, double c1, double c0) {
+        this.position = position;
+        this.intensity = intensity;
+        this.c2 = c2;
+        this.c1 = c1;
+        this.c0 = c0;
+    }
+
+    // Distance beyond which the light adds less than cutoff (0..1) to any color channel.
+    // Diffuse and specular factors and reflection coefficients are at most 1 each, so a light
+    // adds at most 2 * attenuation * intensity; solves c2 d^2 + c1 d + c0 = limit for that bound.
+    double influenceRadius(double cutoff) {
+        int maxIntensity = Math.max(intensity.getRed(), Math.max(intensity.getGreen(), intensity.getBlue()));
+        if (maxIntensity == 0) {
+            return 0;
+        }
+
+        double limit = 2 * (maxIntensity / 255.0) / cutoff;
+        if (c2 > 0) {
+            double discriminant = c1 * c1 - 4 * c2 * (c0 - limit);
+            return Math.max(0, (-c1 + Math.sqrt(Math.max(0, discriminant))) / (2 * c2));
+        }
+        if (c2 == 0 && c1 > 0) {
+            return Math.max(0, (limit - c0) / c1);
+        }
+        // Attenuation never falls off far enough
+        return Double.POSITIVE_INFINITY;
+    }
+}
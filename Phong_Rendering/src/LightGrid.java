@@ -0,0 +1,172 @@
+import java.util.List;
+
+// Uniform grid over the scene bounds. Each cell lists (in scene order) the lights whose
+// influence sphere (Light.influenceRadius) overlaps it, so a shading point only visits lights that
+// can still change its color. Cell lists are stored back to back in one array.
+class LightGrid {
+    private static final int MAX_RESOLUTION = 64;
+    // Cells per light in the whole grid: the longest scene axis gets the cube root of this times
+    // the light count (rounded up), so a cubic scene has about this many cells per light and a
+    // flatter one fewer
+    private static final int TOTAL_CELLS_PER_LIGHT = 4;
+
+    private final double minX, minY, minZ;
+    private final double inverseCellSize;
+    private final int cellsX, cellsY, cellsZ;
+    // Lights of cell c are cellLights[cellStart[c]] .. cellLights[cellStart[c + 1] - 1]
+    private final int[] cellStart;
+    private final int[] cellLights;
+    // Influence radius of every light, in scene order
+    private final double[] radii;
+
+    private LightGrid(double[] bounds, double cellSize, int cellsX, int cellsY, int cellsZ,
+                      int[] cellStart, int[] cellLights, double[] radii) {
+        this.minX = bounds[0];
+        this.minY = bounds[1];
+        this.minZ = bounds[2];
+        this.inverseCellSize = 1.0 / cellSize;
+        this.cellsX = cellsX;
+        this.cellsY = cellsY;
+        this.cellsZ = cellsZ;
+        this.cellStart = cellStart;
+        this.cellLights = cellLights;
+        this.radii = radii;
+    }
+
+    // bounds: minX, minY, minZ, maxX, maxY, maxZ of everything that will be shaded,
+    // cutoff: the largest per-channel contribution (0..1) a light may lose
+    static LightGrid build(List<Light> lights, double[] bounds, double cutoff) {
+        double[] radii = new double[lights.size()];
+        for (int i = 0; i < radii.length; i++) {
+            radii[i] = lights.get(i).influenceRadius(cutoff);
+        }
+
+        double extentX = bounds[3] - bounds[0];
+        double extentY = bounds[4] - bounds[1];
+        double extentZ = bounds[5] - bounds[2];
+        double maxExtent = Math.max(extentX, Math.max(extentY, extentZ));
+
+        int resolution = (int) Math.ceil(Math.cbrt((double) TOTAL_CELLS_PER_LIGHT * lights.size()));
+        resolution = Math.max(1, Math.min(MAX_RESOLUTION, resolution));
+        double cellSize = maxExtent > 0 ? maxExtent / resolution : 1.0;
+
+        int cellsX = cellsAlong(extentX, cellSize, resolution);
+        int cellsY = cellsAlong(extentY, cellSize, resolution);
+        int cellsZ = cellsAlong(extentZ, cellSize, resolution);
+        int cellCount = cellsX * cellsY * cellsZ;
+
+        // First pass counts the lights per cell, the second one fills the lists
+        int[] cellStart = new int[cellCount + 1];
+        for (int i = 0; i < lights.size(); i++) {
+            forEachCell(lights.get(i).position, radii[i], bounds, cellSize, cellsX, cellsY, cellsZ,
+                    cell -> cellStart[cell + 1]++);
+        }
+        for (int c = 0; c < cellCount; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+
+        int[] cellLights = new int[cellStart[cellCount]];
+        int[] fill = new int[cellCount];
+        for (int i = 0; i < lights.size(); i++) {
+            int light = i;
+            forEachCell(lights.get(i).position, radii[i], bounds, cellSize, cellsX, cellsY, cellsZ,
+                    cell -> cellLights[cellStart[cell] + fill[cell]++] = light);
+        }
+
+        return new LightGrid(bounds, cellSize, cellsX, cellsY, cellsZ, cellStart, cellLights, radii);
+    }
+
+    private static int cellsAlong(double extent, double cellSize, int resolution) {
+        return Math.max(1, Math.min(resolution, (int) Math.ceil(extent / cellSize)));
+    }
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+    // Visits the cells whose box is within radius of p
+    private static void forEachCell(Vector3 p, double radius, double[] bounds, double cellSize,
+                                    int cellsX, int cellsY, int cellsZ, CellVisitor visitor) {
+        int fromX = clamp((p.x - radius - bounds[0]) / cellSize, cellsX);
+        int toX = clamp((p.x + radius - bounds[0]) / cellSize, cellsX);
+        int fromY = clamp((p.y - radius - bounds[1]) / cellSize, cellsY);
+        int toY = clamp((p.y + radius - bounds[1]) / cellSize, cellsY);
+        int fromZ = clamp((p.z - radius - bounds[2]) / cellSize, cellsZ);
+        int toZ = clamp((p.z + radius - bounds[2]) / cellSize, cellsZ);
+
+        for (int z = fromZ; z <= toZ; z++) {
+            double dz = axisDistance(p.z, bounds[2] + z * cellSize, cellSize);
+            for (int y = fromY; y <= toY; y++) {
+                double dy = axisDistance(p.y, bounds[1] + y * cellSize, cellSize);
+                for (int x = fromX; x <= toX; x++) {
+                    double dx = axisDistance(p.x, bounds[0] + x * cellSize, cellSize);
+                    if (dx * dx + dy * dy + dz * dz <= radius * radius) {
+                        visitor.visit((z * cellsY + y) * cellsX + x);
+                    }
+                }
+            }
+        }
+    }
+
+    // Cell coordinate for an offset in cells, clamped into the grid (the last cell also
+    // takes whatever is left past the rounded grid size)
+    private static int clamp(double cell, int cells) {
+        if (!(cell >= 0)) {
+            return 0;
+        }
+        return (int) Math.min(cells - 1, cell);
+    }
+
+    // Distance from a coordinate to the interval [min, min + size]
+    private static double axisDistance(double value, double min, double size) {
+        if (value < min) {
+            return min - value;
+        }
+        return Math.max(0, value - (min + size));
+    }
+
+    // Cell containing the point, or -1 if it lies outside the grid
+    int cellAt(Vector3 point) {
+        double fx = (point.x - minX) * inverseCellSize;
+        double fy = (point.y - minY) * inverseCellSize;
+        double fz = (point.z - minZ) * inverseCellSize;
+        if (!(fx >= 0 && fy >= 0 && fz >= 0)) {
+            return -1;
+        }
+
+        int x = (int) fx, y = (int) fy, z = (int) fz;
+        // Points on the far faces of the bounds belong to the last cell
+        if (x == cellsX && fx == cellsX) x--;
+        if (y == cellsY && fy == cellsY) y--;
+        if (z == cellsZ && fz == cellsZ) z--;
+        if (x >= cellsX || y >= cellsY || z >= cellsZ) {
+            return -1;
+        }
+        return (z * cellsY + y) * cellsX + x;
+    }
+
+    int start(int cell) {
+        return cellStart[cell];
+    }
+
+    int end(int cell) {
+        return cellStart[cell + 1];
+    }
+
+    int light(int n) {
+        return cellLights[n];
+    }
+
+    double radius(int light) {
+        return radii[light];
+    }
+
+    int getCellCount() {
+        return cellsX * cellsY * cellsZ;
+    }
+
+    // Average number of lights listed per cell
+    double getAverageLights() {
+        return (double) cellLights.length / getCellCount();
+    }
+}
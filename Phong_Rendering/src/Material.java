@@ -0,0 +1,41 @@
+import java.awt.*;
+import java.util.Objects;
+
+// Surface properties of a sphere. Identical materials are shared, so a scene with
+// many spheres usually only holds a handful of these.
+class Material {
+    Color diffuse;     // Diffuse reflection coefficients (kdR, kdG, kdB)
+    Color specular;    // Specular reflection coefficients (ksR, ksG, ksB)
+    Color ambient;     // Ambient reflection coefficients (kaR, kaG, kaB)
+    Color selfLuminance; // Self luminance (SR, SG, SB)
+    double glossiness; // Glossiness coefficient g
+
+    public Material(Color diffuse, Color specular, Color ambient, Color selfLuminance, double glossiness) {
+        this.diffuse = diffuse;
+        this.specular = specular;
+        this.ambient = ambient;
+        this.selfLuminance = selfLuminance;
+        this.glossiness = glossiness;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Material)) {
+            return false;
+        }
+        Material other = (Material) o;
+        return Double.compare(glossiness, other.glossiness) == 0
+                && diffuse.equals(other.diffuse)
+                && specular.equals(other.specular)
+                && ambient.equals(other.ambient)
+                && selfLuminance.equals(other.selfLuminance);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(diffuse, specular, ambient, selfLuminance, glossiness);
+    }
+}
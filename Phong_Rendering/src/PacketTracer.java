@@ -0,0 +1,23 @@
+// Closest-hit queries for packets of coherent rays, used for the primary rays of a row.
+// The SIMD implementation (vector/VectorPacketTracer.java) needs the jdk.incubator.vector
+// module, so it lives outside src/ and is loaded by name; without it (or without the module
+// at run time) the scalar fallback is used and src/ still builds with plain javac.
+interface PacketTracer {
+
+    // Rays per packet
+    int lanes();
+
+    // Finds the closest hit of every ray in the packet (see RayPacket.distance and sphere)
+    void intersect(BVH bvh, RayPacket packet, TraceContext context);
+
+    // Short name for log output
+    String name();
+
+    static PacketTracer create() {
+        try {
+            return (PacketTracer) Class.forName("VectorPacketTracer").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarPacketTracer();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+// Pinhole camera at eye looking at lookAt, with a vertical field of view in degrees and the
+// world y-axis as up. Rays through whole pixels are built from per-column and per-row tables:
+// a pixel's direction is column[x] + row[y], normalized with a single 1 / sqrt.
+class PerspectiveCamera {
+    final Vector3 eye;
+    final Vector3 lookAt;
+    final double fov;
+
+    // Orthonormal basis: forward, right and up (right-handed, up as close to +y as possible)
+    private final double forwardX, forwardY, forwardZ;
+    private final double rightX, rightY, rightZ;
+    private final double upX, upY, upZ;
+
+    // Image the tables were built for
+    private int width;
+    private int height;
+    private double halfWidth;
+    private double halfHeight;
+    // forward + horizontal offset per pixel column, vertical offset per pixel row
+    private double[] columnX, columnY, columnZ;
+    private double[] rowX, rowY, rowZ;
+
+    public PerspectiveCamera(Vector3 eye, Vector3 lookAt, double fov) {
+        double fx = lookAt.x - eye.x, fy = lookAt.y - eye.y, fz = lookAt.z - eye.z;
+        double length = Math.sqrt(fx * fx + fy * fy + fz * fz);
+        if (length == 0 || !(fov > 0 && fov < 180)) {
+            throw new IllegalArgumentException("Camera needs lookAt != eye and 0 < fov < 180");
+        }
+        this.eye = eye;
+        this.lookAt = lookAt;
+        this.fov = fov;
+        forwardX = fx / length;
+        forwardY = fy / length;
+        forwardZ = fz / length;
+
+        // right = forward x (0, 1, 0); looking straight up or down, right is +x instead
+        double rx = -forwardZ, rz = forwardX;
+        double rightLength = Math.sqrt(rx * rx + rz * rz);
+        if (rightLength < 1e-12) {
+            rx = 1;
+            rz = 0;
+            rightLength = 1;
+        }
+        rightX = rx / rightLength;
+        rightY = 0;
+        rightZ = rz / rightLength;
+
+        // up = right x forward
+        upX = rightY * forwardZ - rightZ * forwardY;
+        upY = rightZ * forwardX - rightX * forwardZ;
+        upZ = rightX * forwardY - rightY * forwardX;
+    }
+
+    // Builds the direction tables for the image size (no-op if they already match)
+    public void prepare(int width, int height) {
+        if (columnX != null && this.width == width && this.height == height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        halfHeight = Math.tan(Math.toRadians(fov) / 2);
+        halfWidth = halfHeight * width / height;
+
+        columnX = new double[width];
+        columnY = new double[width];
+        columnZ = new double[width];
+        for (int x = 0; x < width; x++) {
+            double u = horizontal(x);
+            columnX[x] = forwardX + u * rightX;
+            columnY[x] = forwardY + u * rightY;
+            columnZ[x] = forwardZ + u * rightZ;
+        }
+
+        rowX = new double[height];
+        rowY = new double[height];
+        rowZ = new double[height];
+        for (int y = 0; y < height; y++) {
+            double v = vertical(y);
+            rowX[y] = v * upX;
+            rowY[y] = v * upY;
+            rowZ[y] = v * upZ;
+        }
+    }
+
+    // View plane offsets (at distance 1) of a pixel position, with the same pixel convention
+    // as the orthographic view: x = 0 is the left edge, y = 0 the top edge
+    private double horizontal(double x) {
+        return (x / width - 0.5) * 2 * halfWidth;
+    }
+
+    private double vertical(double y) {
+        return (0.5 - y / height) * 2 * halfHeight;
+    }
+
+    // Sets up the ray through a (possibly fractional) pixel position, from the eye moved by
+    // offset. Whole pixels come from the tables, anything else is computed the same way.
+    public Ray primaryRay(double x, double y, Vector3 offset, Ray ray) {
+        int column = (int) x;
+        int row = (int) y;
+        double dirX, dirY, dirZ;
+        if (column == x && row == y) {
+            dirX = columnX[column] + rowX[row];
+            dirY = columnY[column] + rowY[row];
+            dirZ = columnZ[column] + rowZ[row];
+        } else {
+            double u = horizontal(x);
+            double v = vertical(y);
+            dirX = (forwardX + u * rightX) + v * upX;
+            dirY = (forwardY + u * rightY) + v * upY;
+            dirZ = (forwardZ + u * rightZ) + v * upZ;
+        }
+
+        double inverseLength = 1.0 / Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+        return ray.set(eye.x + offset.x, eye.y + offset.y, eye.z + offset.z,
+                dirX * inverseLength, dirY * inverseLength, dirZ * inverseLength);
+    }
+}
@@ -1,128 +1,288 @@
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PhongRaytracer {
 
     private int width;
     private int height;
     private String outputFileName;
-    private Sphere sphere;
+    private BVH bvh;
+    private List<Material> materials;
+    // Scene sphere index -> index into materials
+    private IntBuffer sphereMaterials;
     private List<Light> lights;
     private Color ambientLight;
 
-    private static class Vector3 {
-        double x, y, z;
+    // Shading data flattened at load time (see prepareShadingData), one record per material and
+    // per light. Values keep the float precision the Color channels were shaded with before.
+    private static final int MATERIAL_STRIDE = 10;
+    private static final int LIGHT_STRIDE = 9;
+    // emission (self-luminance + ambient light * ka) RGB, kd RGB, ks RGB, glossiness
+    private double[] materialData;
+    // position XYZ, intensity RGB, attenuation c2 c1 c0
+    private double[] lightData;
+
+    // Compiled (binary) scene files start with "PHSC" followed by the format version.
+    // Version 2 added the camera block; version 1 files (no camera) still load.
+    private static final int COMPILED_SCENE_MAGIC = 0x50485343;
+    private static final int COMPILED_SCENE_VERSION = 2;
+
+    // Perspective camera from the scene file, null for the default orthographic view below
+    private PerspectiveCamera camera;
+
+    // Camera is positioned on the z-axis, facing along negative z-axis
+    private static final double CAMERA_Z = 5;
+    private static final double VIEW_PLANE_DISTANCE = 1.0;
+    private static final double VIEW_PLANE_WIDTH = 2.0;
+    // Offset of the camera (and view plane) from that default position, moved by animations
+    private final Vector3 cameraOffset = new Vector3();
+
+    // Shadow rays start this far above the surface to avoid hitting it again
+    private static final double SHADOW_BIAS = 1e-6;
+
+    // Scratch vectors for the thread that is currently tracing
+    private final ThreadLocal<TraceContext> traceContexts = ThreadLocal.withInitial(TraceContext::new);
+
+    // Parallel render settings (threadCount <= 1 keeps the serial path)
+    private int threadCount = 1;
+    private int tileSize = 32;
+
+    private boolean shadows = false;
+    private final LongAdder shadowRayCount = new LongAdder();
+    private final LongAdder shadowCacheHitCount = new LongAdder();
+
+    // Totals since creation; registered over JMX and summarized to JSON when enabled
+    private final RenderMetrics metrics = new RenderMetrics();
+    private boolean metricsEnabled = false;
+
+    // PNG encoding runs in the background while the next frame renders
+    private final AsyncImageWriter imageWriter = new AsyncImageWriter(metrics.encodeNanos);
+
+    // Created on the first parallel render and reused for every later one
+    private ForkJoinPool pool;
+
+    // Headless renders only write the PNG and never open a window
+    private boolean headless = false;
+
+    // Adaptive anti-aliasing: pixels differing from a neighbour by more than the threshold
+    // (in any channel, 0..1) are re-sampled on an aaGridSize x aaGridSize grid
+    private double aaThreshold = -1;
+    private int aaGridSize = 4;
+    private final LongAdder sampleCount = new LongAdder();
+    private final LongAdder refinedPixelCount = new LongAdder();
+
+    // Progressive rendering: the first pass traces one pixel per block of this size
+    // (a power of two, 0 = off), every later pass halves the block size
+    private int progressiveBlockSize = 0;
+    private PreviewListener previewListener;
+
+    // Light culling: shading points only visit the lights listed in their grid cell, i.e. those
+    // that can add more than lightCutoff (0..1, negative = off) to a channel. Lights are culled
+    // one by one, so with many lights the skipped contributions can still add up to more.
+    // The grid is built on the first render after a scene is loaded.
+    private double lightCutoff = -1;
+    private LightGrid lightGrid;
+
+    // Keyframed lights and camera (see animation_format.txt), rendered instead of a single frame
+    private String animationFile;
+
+    // Traces primary rays row by row in packets (SIMD where available), null = one ray at a time.
+    // Progressive passes and anti-aliasing samples are always traced one by one.
+    private PacketTracer packetTracer;
+
+    // Primary hits of the last render, kept (if enabled) so relight() can reshade them
+    private boolean keepGBuffer = false;
+    private GBuffer gBuffer;
+
+    // Receives the live preview after each progressive pass
+    public interface PreviewListener {
+        void passCompleted(BufferedImage preview, int blockSize);
+    }
 
-        public Vector3(double x, double y, double z) {
-            this.x = x;
-            this.y = y;
-            this.z = z;
-        }
+    // One pass over the frame, run on [startX, endX) x [startY, endY) regions that never overlap
+    private interface RegionPass {
+        void render(int startX, int startY, int endX, int endY);
+    }
 
-        public Vector3 add(Vector3 v) {
-            return new Vector3(x + v.x, y + v.y, z + v.z);
-        }
+    // Renders a contiguous range of tiles, splitting it in half until a single tile is left
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        public Vector3 subtract(Vector3 v) {
-            return new Vector3(x - v.x, y - v.y, z - v.z);
-        }
+        private final RegionPass pass;
+        private final int tilesX;
+        private final int from;
+        private final int to;
 
-        public Vector3 multiply(double scalar) {
-            return new Vector3(x * scalar, y * scalar, z * scalar);
+        TileTask(RegionPass pass, int tilesX, int from, int to) {
+            this.pass = pass;
+            this.tilesX = tilesX;
+            this.from = from;
+            this.to = to;
         }
 
-        public double dot(Vector3 v) {
-            return x * v.x + y * v.y + z * v.z;
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                renderTile(pass, from % tilesX, from / tilesX);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(pass, tilesX, from, mid), new TileTask(pass, tilesX, mid, to));
+            }
         }
+    }
 
-        public double length() {
-            return Math.sqrt(x * x + y * y + z * z);
-        }
+    public PhongRaytracer() {
+        this.materials = new ArrayList<>();
+        this.lights = new ArrayList<>();
+    }
 
-        public Vector3 normalize() {
-            double len = length();
-            if (len > 0) {
-                return new Vector3(x / len, y / len, z / len);
-            }
-            return new Vector3(0, 0, 0);
-        }
+    public void setThreadCount(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
     }
 
-    private static class Light {
-        Vector3 position;
-        Color intensity;
-        double c2;
-        double c1;
-        double c0;
+    public void setTileSize(int tileSize) {
+        this.tileSize = Math.max(1, tileSize);
+    }
 
-        public Light(Vector3 position, Color intensity, double c2, double c1, double c0) {
-            this.position = position;
-            this.intensity = intensity;
-            this.c2 = c2;
-            this.c1 = c1;
-            this.c0 = c0;
-        }
+    public void setShadows(boolean shadows) {
+        this.shadows = shadows;
     }
 
-    private static class Sphere {
-        Vector3 center;
-        double radius;
-        Color diffuse;     // Diffuse reflection coefficients (kdR, kdG, kdB)
-        Color specular;    // Specular reflection coefficients (ksR, ksG, ksB)
-        Color ambient;     // Ambient reflection coefficients (kaR, kaG, kaB)
-        Color selfLuminance; // Self luminance (SR, SG, SB)
-        double glossiness; // Glossiness coefficient g
+    public void setHeadless(boolean headless) {
+        this.headless = headless;
+    }
 
-        public Sphere(Vector3 center, double radius, Color diffuse, Color specular,
-                      Color ambient, Color selfLuminance, double glossiness) {
-            this.center = center;
-            this.radius = radius;
-            this.diffuse = diffuse;
-            this.specular = specular;
-            this.ambient = ambient;
-            this.selfLuminance = selfLuminance;
-            this.glossiness = glossiness;
-        }
+    // Block size of the first progressive pass (rounded down to a power of two), 0 turns it off
+    public void setProgressive(int startBlockSize) {
+        this.progressiveBlockSize = startBlockSize > 0 ? Integer.highestOneBit(startBlockSize) : 0;
+    }
 
-        // Check if a ray intersects with this sphere
-        public double intersect(Vector3 rayOrigin, Vector3 rayDirection) {
-            Vector3 oc = rayOrigin.subtract(center);
-            double a = rayDirection.dot(rayDirection);
-            double b = 2.0 * oc.dot(rayDirection);
-            double c = oc.dot(oc) - radius * radius;
-            double discriminant = b * b - 4 * a * c;
+    public void setPreviewListener(PreviewListener previewListener) {
+        this.previewListener = previewListener;
+    }
 
-            if (discriminant < 0) {
-                return -1.0; // No intersection
-            } else {
-                double t = (-b - Math.sqrt(discriminant)) / (2.0 * a);
-                if (t > 0) {
-                    return t; // Return the distance to intersection
-                }
-                return -1.0;
-            }
-        }
+    // Cutoff in 8-bit quantization steps (1 = 1/255), a negative value turns culling off
+    public void setLightCulling(double cutoffSteps) {
+        this.lightCutoff = cutoffSteps < 0 ? -1 : cutoffSteps / 255.0;
+        this.lightGrid = null;
+    }
+
+    // Animation file to render frames from, null renders the scene as a still
+    public void setAnimation(String animationFile) {
+        this.animationFile = animationFile;
+    }
+
+    public void setPacketTracing(boolean packets) {
+        setPacketTracer(packets ? PacketTracer.create() : null);
+    }
 
-        // Calculate normal at a point on the sphere
-        public Vector3 getNormalAt(Vector3 point) {
-            return point.subtract(center).normalize();
+    void setPacketTracer(PacketTracer packetTracer) {
+        this.packetTracer = packetTracer;
+    }
+
+    // Records the primary hits of every render() in a G-buffer, so that after changing lights
+    // or materials relight() can reshade the frame without tracing primary rays again
+    public void setGBuffer(boolean keepGBuffer) {
+        this.keepGBuffer = keepGBuffer;
+        if (!keepGBuffer) {
+            gBuffer = null;
         }
     }
 
-    public PhongRaytracer() {
-        this.lights = new ArrayList<>();
+    // Registers the render metrics over JMX on the next render and writes a JSON summary of
+    // them next to the output file on close()
+    public void setMetrics(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
     }
 
-    private double calculateAttenuation(double distance, double c2, double c1, double c0) {
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    String getOutputFileName() {
+        return outputFileName;
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    String getAnimationFile() {
+        return animationFile;
+    }
+
+    public int getLightCount() {
+        return lights.size();
+    }
+
+    // Materials are shared by all spheres with identical coefficients (ids in load order)
+    public int getMaterialCount() {
+        return materials.size();
+    }
+
+    // Copies position: animations move the light's own vector in place
+    public void setLight(int index, Vector3 position, Color intensity) {
+        Light light = lights.get(index);
+        light.position.set(position);
+        light.intensity = intensity;
+        invalidateShadingData();
+    }
+
+    public void setMaterial(int index, Material material) {
+        materials.set(index, material);
+        invalidateShadingData();
+    }
+
+    // A negative threshold turns anti-aliasing off
+    public void setAntialiasing(double contrastThreshold, int gridSize) {
+        this.aaThreshold = contrastThreshold;
+        this.aaGridSize = Math.max(1, gridSize);
+    }
+
+    double calculateAttenuation(double distance, double c2, double c1, double c0) {
         double attenuation = 1.0 / (c2 * distance * distance + c1 * distance + c0);
         return Math.min(attenuation, 1.0);
     }
 
     public boolean loadScene(String filename) {
+        materials.clear();
+        lights.clear();
+        lightGrid = null;
+        gBuffer = null;
+        camera = null;
+        cameraOffset.set(0, 0, 0);
+
+        if (isCompiledScene(filename)) {
+            return loadCompiledScene(filename);
+        }
+
+        List<Sphere> spheres = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
             String line;
 
@@ -147,72 +307,31 @@ public class PhongRaytracer {
                     Math.min(1.0f, ambientB)
             );
 
-            // Read sphere data
+            // Read sphere data: either a single sphere block or a sphere count followed by the blocks
             line = reader.readLine().trim();
-            String[] sphereData = line.split("\\s+");
-
-            Vector3 sphereCenter = new Vector3(
-                    Double.parseDouble(sphereData[0]),
-                    Double.parseDouble(sphereData[1]),
-                    Double.parseDouble(sphereData[2])
-            );
-            double sphereRadius = Double.parseDouble(sphereData[3]);
-
-            // Read sphere material properties
-            // Diffuse coefficients
-            line = reader.readLine().trim();
-            String[] diffuseData = line.split("\\s+");
-            float kdR = Float.parseFloat(diffuseData[0]);
-            float kdG = Float.parseFloat(diffuseData[1]);
-            float kdB = Float.parseFloat(diffuseData[2]);
-            Color diffuse = new Color(
-                    Math.min(1.0f, kdR),
-                    Math.min(1.0f, kdG),
-                    Math.min(1.0f, kdB)
-            );
-
-            // Specular coefficients
-            line = reader.readLine().trim();
-            String[] specularData = line.split("\\s+");
-            float ksR = Float.parseFloat(specularData[0]);
-            float ksG = Float.parseFloat(specularData[1]);
-            float ksB = Float.parseFloat(specularData[2]);
-            Color specular = new Color(
-                    Math.min(1.0f, ksR),
-                    Math.min(1.0f, ksG),
-                    Math.min(1.0f, ksB)
-            );
-
-            // Ambient reflection coefficients
-            line = reader.readLine().trim();
-            String[] ambientReflData = line.split("\\s+");
-            float kaR = Float.parseFloat(ambientReflData[0]);
-            float kaG = Float.parseFloat(ambientReflData[1]);
-            float kaB = Float.parseFloat(ambientReflData[2]);
-            Color ambient = new Color(
-                    Math.min(1.0f, kaR),
-                    Math.min(1.0f, kaG),
-                    Math.min(1.0f, kaB)
-            );
-
-            // Self luminance
-            line = reader.readLine().trim();
-            String[] selfLuminanceData = line.split("\\s+");
-            float sR = Float.parseFloat(selfLuminanceData[0]);
-            float sG = Float.parseFloat(selfLuminanceData[1]);
-            float sB = Float.parseFloat(selfLuminanceData[2]);
-            Color selfLuminance = new Color(
-                    Math.min(1.0f, sR),
-                    Math.min(1.0f, sG),
-                    Math.min(1.0f, sB)
-            );
+            String[] sphereHeader = line.split("\\s+");
+            if (sphereHeader.length == 1) {
+                int numSpheres = Integer.parseInt(sphereHeader[0]);
+                for (int i = 0; i < numSpheres; i++) {
+                    spheres.add(readSphere(reader, reader.readLine().trim()));
+                }
+            } else {
+                spheres.add(readSphere(reader, line));
+            }
 
-            // Read glossiness
-            line = reader.readLine().trim();
-            double glossiness = Double.parseDouble(line);
+            // Share identical materials between spheres
+            Map<Material, Integer> materialIds = new HashMap<>();
+            int[] sphereMaterialIds = new int[spheres.size()];
+            for (int i = 0; i < spheres.size(); i++) {
+                sphereMaterialIds[i] = materialIds.computeIfAbsent(spheres.get(i).material, material -> {
+                    materials.add(material);
+                    return materials.size() - 1;
+                });
+            }
+            sphereMaterials = IntBuffer.wrap(sphereMaterialIds);
 
-            // Create sphere
-            sphere = new Sphere(sphereCenter, sphereRadius, diffuse, specular, ambient, selfLuminance, glossiness);
+            // Build the acceleration structure for closest-hit queries
+            bvh = BVHBuilder.build(spheres);
 
             // Read attenuation coefficients
             line = reader.readLine().trim();
@@ -245,122 +364,977 @@ public class PhongRaytracer {
                 lights.add(new Light(lightPos, lightIntensity, c2, c1, c0));
             }
 
+            // Optional perspective camera: eyeX eyeY eyeZ lookAtX lookAtY lookAtZ fov
+            line = reader.readLine();
+            if (line != null && !line.trim().isEmpty()) {
+                String[] cameraData = line.trim().split("\\s+");
+                camera = new PerspectiveCamera(
+                        new Vector3(Double.parseDouble(cameraData[0]), Double.parseDouble(cameraData[1]),
+                                Double.parseDouble(cameraData[2])),
+                        new Vector3(Double.parseDouble(cameraData[3]), Double.parseDouble(cameraData[4]),
+                                Double.parseDouble(cameraData[5])),
+                        Double.parseDouble(cameraData[6]));
+            }
+
+            prepareShadingData();
             return true;
-        } catch (IOException | NumberFormatException e) {
+        } catch (IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
             System.err.println("Error loading scene: " + e.getMessage());
             return false;
         }
     }
 
+    // Reads one sphere block (geometry line already read, followed by its material lines)
+    private Sphere readSphere(BufferedReader reader, String sphereLine) throws IOException {
+        String line;
+        String[] sphereData = sphereLine.split("\\s+");
+
+        Vector3 sphereCenter = new Vector3(
+                Double.parseDouble(sphereData[0]),
+                Double.parseDouble(sphereData[1]),
+                Double.parseDouble(sphereData[2])
+        );
+        double sphereRadius = Double.parseDouble(sphereData[3]);
+
+        // Read sphere material properties
+        // Diffuse coefficients
+        line = reader.readLine().trim();
+        String[] diffuseData = line.split("\\s+");
+        float kdR = Float.parseFloat(diffuseData[0]);
+        float kdG = Float.parseFloat(diffuseData[1]);
+        float kdB = Float.parseFloat(diffuseData[2]);
+        Color diffuse = new Color(
+                Math.min(1.0f, kdR),
+                Math.min(1.0f, kdG),
+                Math.min(1.0f, kdB)
+        );
+
+        // Specular coefficients
+        line = reader.readLine().trim();
+        String[] specularData = line.split("\\s+");
+        float ksR = Float.parseFloat(specularData[0]);
+        float ksG = Float.parseFloat(specularData[1]);
+        float ksB = Float.parseFloat(specularData[2]);
+        Color specular = new Color(
+                Math.min(1.0f, ksR),
+                Math.min(1.0f, ksG),
+                Math.min(1.0f, ksB)
+        );
+
+        // Ambient reflection coefficients
+        line = reader.readLine().trim();
+        String[] ambientReflData = line.split("\\s+");
+        float kaR = Float.parseFloat(ambientReflData[0]);
+        float kaG = Float.parseFloat(ambientReflData[1]);
+        float kaB = Float.parseFloat(ambientReflData[2]);
+        Color ambient = new Color(
+                Math.min(1.0f, kaR),
+                Math.min(1.0f, kaG),
+                Math.min(1.0f, kaB)
+        );
+
+        // Self luminance
+        line = reader.readLine().trim();
+        String[] selfLuminanceData = line.split("\\s+");
+        float sR = Float.parseFloat(selfLuminanceData[0]);
+        float sG = Float.parseFloat(selfLuminanceData[1]);
+        float sB = Float.parseFloat(selfLuminanceData[2]);
+        Color selfLuminance = new Color(
+                Math.min(1.0f, sR),
+                Math.min(1.0f, sG),
+                Math.min(1.0f, sB)
+        );
+
+        // Read glossiness
+        line = reader.readLine().trim();
+        double glossiness = Double.parseDouble(line);
+
+        return new Sphere(sphereCenter, sphereRadius, new Material(diffuse, specular, ambient, selfLuminance, glossiness));
+    }
+
+    static boolean isCompiledScene(String filename) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+            return Integer.reverseBytes(in.readInt()) == COMPILED_SCENE_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Writes the loaded scene in the compiled format: a small header (resolution, output file,
+    // ambient light, camera, lights, materials) followed by the sphere material ids and the BVH,
+    // little-endian and 8-byte aligned so they can be mapped straight back in.
+    public void saveCompiledScene(String filename) throws IOException {
+        byte[] outputName = outputFileName.getBytes(StandardCharsets.UTF_8);
+        int sphereCount = sphereMaterials.limit();
+
+        int headerSize = 16 + align(4 + outputName.length) + 16
+                + 64
+                + 8 + lights.size() * 64
+                + 8 + materials.size() * 56
+                + 8 + align(sphereCount * 4);
+        int size = headerSize + bvh.byteSize();
+
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+
+            out.putInt(COMPILED_SCENE_MAGIC).putInt(COMPILED_SCENE_VERSION).putInt(width).putInt(height);
+            out.putInt(outputName.length).put(outputName);
+            out.position(16 + align(4 + outputName.length));
+            putColor(out, ambientLight);
+            out.putInt(0);
+
+            // Camera flag, eye, lookAt, fov (zeros without a camera)
+            out.putInt(camera != null ? 1 : 0).putInt(0);
+            if (camera != null) {
+                out.putDouble(camera.eye.x).putDouble(camera.eye.y).putDouble(camera.eye.z);
+                out.putDouble(camera.lookAt.x).putDouble(camera.lookAt.y).putDouble(camera.lookAt.z);
+                out.putDouble(camera.fov);
+            } else {
+                out.position(out.position() + 56);
+            }
+
+            out.putInt(lights.size()).putInt(0);
+            for (Light light : lights) {
+                out.putDouble(light.position.x).putDouble(light.position.y).putDouble(light.position.z);
+                out.putDouble(light.c2).putDouble(light.c1).putDouble(light.c0);
+                putColor(out, light.intensity);
+                out.putInt(0);
+            }
+
+            out.putInt(materials.size()).putInt(0);
+            for (Material material : materials) {
+                putColor(out, material.diffuse);
+                putColor(out, material.specular);
+                putColor(out, material.ambient);
+                putColor(out, material.selfLuminance);
+                out.putDouble(material.glossiness);
+            }
+
+            out.putInt(sphereCount).putInt(0);
+            int materialIdsStart = out.position();
+            out.asIntBuffer().put(sphereMaterials.duplicate().rewind());
+            out.position(materialIdsStart + align(sphereCount * 4));
+
+            bvh.writeTo(out);
+            out.force();
+        }
+    }
+
+    // Maps a compiled scene. Only the header is parsed; sphere material ids and the BVH
+    // stay in the mapped file and are read from there while rendering.
+    private boolean loadCompiledScene(String filename) {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+
+            in.getInt();
+            int version = in.getInt();
+            if (version != 1 && version != COMPILED_SCENE_VERSION) {
+                System.err.println("Error loading scene: unsupported compiled scene version " + version);
+                return false;
+            }
+            width = in.getInt();
+            height = in.getInt();
+            byte[] outputName = new byte[in.getInt()];
+            in.get(outputName);
+            outputFileName = new String(outputName, StandardCharsets.UTF_8);
+            in.position(16 + align(4 + outputName.length));
+            ambientLight = getColor(in);
+            in.getInt();
+
+            if (version >= 2) {
+                boolean hasCamera = in.getInt() != 0;
+                in.getInt();
+                Vector3 eye = new Vector3(in.getDouble(), in.getDouble(), in.getDouble());
+                Vector3 lookAt = new Vector3(in.getDouble(), in.getDouble(), in.getDouble());
+                double fov = in.getDouble();
+                if (hasCamera) {
+                    camera = new PerspectiveCamera(eye, lookAt, fov);
+                }
+            }
+
+            int numLights = in.getInt();
+            in.getInt();
+            for (int i = 0; i < numLights; i++) {
+                Vector3 position = new Vector3(in.getDouble(), in.getDouble(), in.getDouble());
+                double c2 = in.getDouble();
+                double c1 = in.getDouble();
+                double c0 = in.getDouble();
+                Color intensity = getColor(in);
+                in.getInt();
+                lights.add(new Light(position, intensity, c2, c1, c0));
+            }
+
+            int numMaterials = in.getInt();
+            in.getInt();
+            for (int i = 0; i < numMaterials; i++) {
+                Color diffuse = getColor(in);
+                Color specular = getColor(in);
+                Color ambient = getColor(in);
+                Color selfLuminance = getColor(in);
+                materials.add(new Material(diffuse, specular, ambient, selfLuminance, in.getDouble()));
+            }
+
+            int sphereCount = in.getInt();
+            in.getInt();
+            sphereMaterials = in.slice(in.position(), sphereCount * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            in.position(in.position() + align(sphereCount * 4));
+
+            bvh = BVH.map(in);
+            prepareShadingData();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error loading scene: " + e);
+            return false;
+        }
+    }
+
+    // Lights or materials changed: the shading data (and light grid) are rebuilt on the next render
+    private void invalidateShadingData() {
+        materialData = null;
+        lightData = null;
+        lightGrid = null;
+    }
+
+    // Converts the material and light colors to 0..1 once, so shading never touches Color.
+    // The constant part of every material (self-luminance plus the ambient term) is summed here.
+    private void prepareShadingData() {
+        float ambientR = ambientLight.getRed() / 255.0f;
+        float ambientG = ambientLight.getGreen() / 255.0f;
+        float ambientB = ambientLight.getBlue() / 255.0f;
+
+        materialData = new double[materials.size() * MATERIAL_STRIDE];
+        for (int i = 0; i < materials.size(); i++) {
+            Material material = materials.get(i);
+            int o = i * MATERIAL_STRIDE;
+            materialData[o] = material.selfLuminance.getRed() / 255.0f + ambientR * (material.ambient.getRed() / 255.0f);
+            materialData[o + 1] = material.selfLuminance.getGreen() / 255.0f + ambientG * (material.ambient.getGreen() / 255.0f);
+            materialData[o + 2] = material.selfLuminance.getBlue() / 255.0f + ambientB * (material.ambient.getBlue() / 255.0f);
+            materialData[o + 3] = material.diffuse.getRed() / 255.0f;
+            materialData[o + 4] = material.diffuse.getGreen() / 255.0f;
+            materialData[o + 5] = material.diffuse.getBlue() / 255.0f;
+            materialData[o + 6] = material.specular.getRed() / 255.0f;
+            materialData[o + 7] = material.specular.getGreen() / 255.0f;
+            materialData[o + 8] = material.specular.getBlue() / 255.0f;
+            materialData[o + 9] = material.glossiness;
+        }
+
+        lightData = new double[lights.size() * LIGHT_STRIDE];
+        for (int i = 0; i < lights.size(); i++) {
+            Light light = lights.get(i);
+            int o = i * LIGHT_STRIDE;
+            lightData[o] = light.position.x;
+            lightData[o + 1] = light.position.y;
+            lightData[o + 2] = light.position.z;
+            lightData[o + 3] = light.intensity.getRed() / 255.0f;
+            lightData[o + 4] = light.intensity.getGreen() / 255.0f;
+            lightData[o + 5] = light.intensity.getBlue() / 255.0f;
+            lightData[o + 6] = light.c2;
+            lightData[o + 7] = light.c1;
+            lightData[o + 8] = light.c0;
+        }
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    private static void putColor(ByteBuffer out, Color color) {
+        out.putFloat(color.getRed() / 255.0f).putFloat(color.getGreen() / 255.0f).putFloat(color.getBlue() / 255.0f);
+    }
+
+    private static Color getColor(ByteBuffer in) {
+        return new Color(in.getFloat(), in.getFloat(), in.getFloat());
+    }
+
     public void render() {
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (metricsEnabled) {
+            metrics.register();
+        }
+        if (animationFile != null) {
+            try {
+                renderAnimation(Animation.load(animationFile, lights.size()));
+            } catch (IOException e) {
+                System.err.println("Error loading animation: " + e.getMessage());
+            }
+            return;
+        }
 
-        // Camera is positioned at origin, facing along negative z-axis
-        Vector3 cameraPosition = new Vector3(0, 0, 5);
+        BufferedImage preview = null;
+        Canvas previewCanvas = null;
+        if (progressiveBlockSize > 0) {
+            preview = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            if (!headless) {
+                previewCanvas = displayImage(preview);
+            }
+        }
 
-        // Define view plane
-        double viewPlaneDistance = 1.0;
-        double viewPlaneWidth = 2.0;
-        double viewPlaneHeight = 2.0 * height / width;
+        if (keepGBuffer && (gBuffer == null || gBuffer.width != width || gBuffer.height != height)) {
+            gBuffer = new GBuffer(width, height);
+        }
+        FrameBuffer frameBuffer = renderFrame(preview, previewCanvas, gBuffer, false);
 
-        // For each pixel in the image
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                // Convert pixel coordinates to view plane coordinates
-                double viewX = (x / (double) width - 0.5) * viewPlaneWidth;
-                double viewY = (0.5 - y / (double) height) * viewPlaneHeight;
+        if (aaThreshold >= 0) {
+            long pixels = (long) width * height;
+            System.out.printf("Anti-aliasing: %d of %d pixels refined, %.2f samples per pixel%n",
+                    refinedPixelCount.sum(), pixels, (double) sampleCount.sum() / pixels);
+        }
+        if (shadows) {
+            long shadowRaysTotal = shadowRayCount.sum();
+            long cacheHits = shadowCacheHitCount.sum();
+            System.out.printf("Shadow rays: %d, traversals saved by occluder cache: %d (%.1f%%)%n",
+                    shadowRaysTotal, cacheHits, shadowRaysTotal > 0 ? 100.0 * cacheHits / shadowRaysTotal : 0.0);
+        }
+        if (packetTracer != null) {
+            System.out.printf("Packet tracing: %s, %d rays per packet%n", packetTracer.name(), packetTracer.lanes());
+        }
+        if (lightGrid != null) {
+            System.out.printf("Light culling: %d grid cells, %.1f of %d lights per cell on average%n",
+                    lightGrid.getCellCount(), lightGrid.getAverageLights(), lights.size());
+        }
 
-                Vector3 rayDirection = new Vector3(0, 0, -1).normalize();
-                Vector3 rayOrigin = new Vector3(viewX, viewY, cameraPosition.z - viewPlaneDistance);
+        BufferedImage image = writeImage(frameBuffer, outputFileName);
 
-                double t = sphere.intersect(rayOrigin, rayDirection);
+        if (preview != null) {
+            // The preview window switches over to the final image
+            System.arraycopy(pixelsOf(image), 0, pixelsOf(preview), 0, width * height);
+            if (previewCanvas != null) {
+                previewCanvas.repaint();
+            }
+            if (previewListener != null) {
+                previewListener.passCompleted(preview, 1);
+            }
+        } else if (!headless) {
+            displayImage(image);
+        }
+    }
 
-                if (t > 0) {
-                    // Calculate intersection point
-                    Vector3 intersectionPoint = rayOrigin.add(rayDirection.multiply(t));
+    // Traces the frame in passes of shrinking blocks. Every pixel is traced exactly once at its
+    // own position, so the frame buffer ends up identical to a non-progressive render; the
+    // preview shows each traced color stretched over the block it stands for until refined.
+    private void renderProgressive(FrameBuffer primary, GBuffer gBuffer, BufferedImage preview, Canvas previewCanvas) {
+        int[] previewPixels = pixelsOf(preview);
+        long start = System.nanoTime();
 
-                    // Calculate surface normal at intersection point
-                    Vector3 normal = sphere.getNormalAt(intersectionPoint);
+        for (int blockSize = progressiveBlockSize; blockSize >= 1; blockSize /= 2) {
+            int block = blockSize;
+            boolean firstPass = blockSize == progressiveBlockSize;
+            runPass((startX, startY, endX, endY) ->
+                    renderProgressiveRegion(primary, gBuffer, previewPixels, block, firstPass, startX, startY, endX, endY));
 
-                    // Calculate color at intersection point using Phong model
-                    Color pixelColor = calculatePhongIllumination(intersectionPoint, normal, rayDirection);
-                    image.setRGB(x, y, pixelColor.getRGB());
-                } else {
-                    image.setRGB(x, y, Color.BLACK.getRGB());
+            System.out.printf("Progressive pass (%dx%d blocks) ready after %.1f ms%n",
+                    block, block, (System.nanoTime() - start) / 1_000_000.0);
+
+            if (previewCanvas != null) {
+                previewCanvas.repaint();
+            }
+            if (previewListener != null && block > 1) {
+                previewListener.passCompleted(preview, block);
+            }
+        }
+    }
+
+    private void renderProgressiveRegion(FrameBuffer primary, GBuffer gBuffer, int[] previewPixels, int blockSize,
+                                         boolean firstPass, int startX, int startY, int endX, int endY) {
+        TraceContext context = traceContexts.get();
+        context.resetOccluderCache(lights.size());
+        int coarserBlock = blockSize * 2;
+
+        // Pixels on the block grid that are not already on the previous (twice as coarse) grid
+        for (int y = roundUp(startY, blockSize); y < endY; y += blockSize) {
+            for (int x = roundUp(startX, blockSize); x < endX; x += blockSize) {
+                if (!firstPass && x % coarserBlock == 0 && y % coarserBlock == 0) {
+                    continue;
+                }
+                int offset = primary.offset(x, y);
+                tracePixel(x, y, context, primary.rgb, offset, gBuffer);
+
+                int rgb = primary.toRGB(offset);
+                int blockEndX = Math.min(x + blockSize, width);
+                int blockEndY = Math.min(y + blockSize, height);
+                for (int py = y; py < blockEndY; py++) {
+                    Arrays.fill(previewPixels, py * width + x, py * width + blockEndX, rgb);
                 }
             }
         }
+        flushStatistics(context);
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    private static int[] pixelsOf(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    // Traces the loaded scene into a new frame buffer, without encoding or displaying it
+    FrameBuffer renderFrame() {
+        return renderFrame(null, null, null, false);
+    }
+
+    // Reshades the last render() from its G-buffer with the current lights and materials and
+    // returns the new image. Only shading (and shadow rays) run; anti-aliasing, if enabled,
+    // still traces its extra samples at edges.
+    public BufferedImage relight() {
+        return relightFrame().toImage();
+    }
+
+    FrameBuffer relightFrame() {
+        if (gBuffer == null) {
+            throw new IllegalStateException("No G-buffer: enable setGBuffer(true) and render() first");
+        }
+        return renderFrame(null, null, gBuffer, true);
+    }
+
+    // Progressive passes run only when a preview image is given. With a G-buffer the primary
+    // hits are recorded into it, or, if reuseHits is set, taken from it instead of being
+    // traced again (no progressive passes then).
+    private FrameBuffer renderFrame(BufferedImage preview, Canvas previewCanvas, GBuffer gBuffer, boolean reuseHits) {
+        long start = System.nanoTime();
+        prepareRender();
+
+        FrameBuffer primary = new FrameBuffer(width, height);
+        shadowRayCount.reset();
+        shadowCacheHitCount.reset();
+        sampleCount.reset();
+        refinedPixelCount.reset();
+
+        if (reuseHits) {
+            runPass((startX, startY, endX, endY) -> shadeRegion(primary, gBuffer, startX, startY, endX, endY));
+        } else if (preview != null) {
+            renderProgressive(primary, gBuffer, preview, previewCanvas);
+        } else {
+            runPass((startX, startY, endX, endY) -> renderRegion(primary, gBuffer, startX, startY, endX, endY));
+        }
+
+        FrameBuffer result = primary;
+        if (aaThreshold >= 0) {
+            // Refinement reads only the one-sample frame and writes a copy, so tiles stay independent
+            FrameBuffer refined = primary.copy();
+            runPass((startX, startY, endX, endY) -> refineRegion(primary, refined, startX, startY, endX, endY));
+            result = refined;
+        }
+        metrics.recordFrame(System.nanoTime() - start);
+        return result;
+    }
+
+    // Rebuilds whatever changed lights or materials invalidated
+    private void prepareRender() {
+        if (camera != null) {
+            camera.prepare(width, height);
+        }
+        if (materialData == null) {
+            prepareShadingData();
+        }
+        if (lightCutoff >= 0 && lightGrid == null) {
+            lightGrid = LightGrid.build(lights, bvh.getBounds(), lightCutoff);
+        }
+    }
+
+    // Renders [startX, endX) x [startY, endY) on the calling thread into a frame buffer that
+    // covers only that region (and, with anti-aliasing, a one-pixel border around it, so the
+    // edge pixels see the same neighbours as in a full frame). Used by RenderWorker.
+    FrameBuffer renderTile(int startX, int startY, int endX, int endY) {
+        long start = System.nanoTime();
+        prepareRender();
+        int border = aaThreshold >= 0 ? 1 : 0;
+        int borderStartX = Math.max(0, startX - border);
+        int borderStartY = Math.max(0, startY - border);
+        int borderEndX = Math.min(width, endX + border);
+        int borderEndY = Math.min(height, endY + border);
+
+        FrameBuffer primary = new FrameBuffer(borderEndX - borderStartX, borderEndY - borderStartY,
+                borderStartX, borderStartY);
+        renderRegion(primary, null, borderStartX, borderStartY, borderEndX, borderEndY);
+
+        FrameBuffer result = primary;
+        if (aaThreshold >= 0) {
+            result = primary.copy();
+            refineRegion(primary, result, startX, startY, endX, endY);
+        }
+        metrics.recordTile(System.nanoTime() - start);
+        return result;
+    }
+
+    // Moves the camera and lights to their state at an animation frame
+    void applyAnimationFrame(Animation animation, int frame) {
+        animation.cameraAt(frame, cameraOffset);
+        animation.applyLights(frame, lights);
+        invalidateShadingData();
+    }
+
+    // Renders every frame of the animation to its own PNG (no window, no progressive preview).
+    // The primary hits go into a G-buffer, and a frame whose camera is where the previous
+    // frame's was (only the lights moved) is reshaded from it instead of being traced again.
+    // The frames move the scene's own lights and camera; they are put back afterwards, so the
+    // scene renders as loaded again.
+    public void renderAnimation(Animation animation) {
+        GBuffer gBuffer = new GBuffer(width, height);
+        Vector3 previousCamera = new Vector3();
+        long animationStart = System.nanoTime();
+        int reusedFrames = 0;
+
+        Vector3 baseCamera = new Vector3().set(cameraOffset);
+        Vector3[] basePositions = new Vector3[lights.size()];
+        Color[] baseIntensities = new Color[lights.size()];
+        for (int i = 0; i < lights.size(); i++) {
+            basePositions[i] = new Vector3().set(lights.get(i).position);
+            baseIntensities[i] = lights.get(i).intensity;
+        }
 
         try {
-            File outputFile = new File(outputFileName);
-            ImageIO.write(image, "PNG", outputFile);
-            System.out.println("Image saved to " + outputFileName);
+            for (int frame = 0; frame < animation.getFrameCount(); frame++) {
+                long frameStart = System.nanoTime();
+                previousCamera.set(cameraOffset);
+                applyAnimationFrame(animation, frame);
+
+                boolean reuseHits = frame > 0 && cameraOffset.x == previousCamera.x
+                        && cameraOffset.y == previousCamera.y && cameraOffset.z == previousCamera.z;
+                FrameBuffer frameBuffer = renderFrame(null, null, gBuffer, reuseHits);
+                double frameMillis = (System.nanoTime() - frameStart) / 1e6;
+                writeImage(frameBuffer, animation.getOutputFile(frame));
+
+                if (reuseHits) {
+                    reusedFrames++;
+                }
+                System.out.printf("Frame %d rendered in %.1f ms%s%n", frame, frameMillis,
+                        reuseHits ? " (primary hits reused)" : "");
+            }
+        } finally {
+            cameraOffset.set(baseCamera);
+            for (int i = 0; i < lights.size(); i++) {
+                lights.get(i).position.set(basePositions[i]);
+                lights.get(i).intensity = baseIntensities[i];
+            }
+            invalidateShadingData();
+        }
 
-            displayImage(image);
+        System.out.printf("Animation: %d frames in %.1f ms, %d reshaded from the G-buffer%n",
+                animation.getFrameCount(), (System.nanoTime() - animationStart) / 1e6, reusedFrames);
+    }
+
+    // Quantizes the frame and hands it to the PNG encoder, returns the quantized image
+    private BufferedImage writeImage(FrameBuffer frameBuffer, String fileName) {
+        long start = System.nanoTime();
+        BufferedImage image = frameBuffer.toImage();
+        metrics.encodeNanos.add(System.nanoTime() - start);
+        imageWriter.write(image, fileName);
+        return image;
+    }
+
+    // Waits for pending PNG writes to finish, writes the metrics summary and stops the worker threads
+    public void close() {
+        imageWriter.close();
+        if (pool != null) {
+            pool.shutdown();
+        }
+        writeMetrics();
+        metrics.unregister();
+    }
+
+    // Waits for pending PNG writes, writes the metrics of the frames rendered since the last
+    // call next to the current output file and starts counting afresh (a batch calls this
+    // after every scene). Does nothing without --metrics or frames.
+    public void writeMetrics() {
+        if (!metricsEnabled || metrics.getFrameCount() == 0) {
+            return;
+        }
+        imageWriter.flush();
+        String metricsFile = getMetricsFileName();
+        try {
+            metrics.writeJson(metricsFile, outputFileName);
+            System.out.println("Render metrics saved to " + metricsFile);
         } catch (IOException e) {
-            System.err.println("Error saving image: " + e.getMessage());
+            System.err.println("Error saving render metrics: " + e.getMessage());
         }
+        metrics.reset();
     }
 
-    private Color calculatePhongIllumination(Vector3 point, Vector3 normal, Vector3 rayDirection) {
-        // Initial color is the self-luminance of the surface
-        float r = sphere.selfLuminance.getRed() / 255.0f;
-        float g = sphere.selfLuminance.getGreen() / 255.0f;
-        float b = sphere.selfLuminance.getBlue() / 255.0f;
+    // The output file name with its extension replaced by .metrics.json
+    String getMetricsFileName() {
+        String name = new File(outputFileName).getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? outputFileName.substring(0, outputFileName.length() - (name.length() - dot)) : outputFileName;
+        return base + ".metrics.json";
+    }
 
-        // Add ambient light contribution
-        r += (ambientLight.getRed() / 255.0f) * (sphere.ambient.getRed() / 255.0f);
-        g += (ambientLight.getGreen() / 255.0f) * (sphere.ambient.getGreen() / 255.0f);
-        b += (ambientLight.getBlue() / 255.0f) * (sphere.ambient.getBlue() / 255.0f);
+    // Runs the pass over the whole frame, tile by tile on the pool when rendering in parallel
+    private void runPass(RegionPass pass) {
+        if (threadCount <= 1) {
+            // The serial path renders the frame as a single tile
+            long start = System.nanoTime();
+            pass.render(0, 0, width, height);
+            metrics.recordTile(System.nanoTime() - start);
+            return;
+        }
 
-        // Observer direction is opposite to ray direction
-        Vector3 observerDirection = rayDirection.multiply(-1).normalize();
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
 
-        // Process each light source
-        for (Light light : lights) {
-            // Vector from intersection point to light
-            Vector3 lightDirection = light.position.subtract(point).normalize();
+        if (pool == null || pool.getParallelism() != threadCount) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(threadCount);
+        }
+        pool.invoke(new TileTask(pass, tilesX, 0, tilesX * tilesY));
+    }
+
+    private void renderTile(RegionPass pass, int tileX, int tileY) {
+        int startX = tileX * tileSize;
+        int startY = tileY * tileSize;
+        long start = System.nanoTime();
+        pass.render(startX, startY, Math.min(startX + tileSize, width), Math.min(startY + tileSize, height));
+        metrics.recordTile(System.nanoTime() - start);
+    }
+
+    // Traces every pixel of [startX, endX) x [startY, endY), recording the primary hits in the
+    // G-buffer if one is given. Tiles never overlap, so each worker writes only its own part
+    // of the frame buffer.
+    private void renderRegion(FrameBuffer frameBuffer, GBuffer gBuffer, int startX, int startY, int endX, int endY) {
+        TraceContext context = traceContexts.get();
+        context.resetOccluderCache(lights.size());
+
+        for (int y = startY; y < endY; y++) {
+            if (packetTracer != null) {
+                tracePackets(y, startX, endX, context, frameBuffer, gBuffer);
+                continue;
+            }
+            for (int x = startX; x < endX; x++) {
+                tracePixel(x, y, context, frameBuffer.rgb, frameBuffer.offset(x, y), gBuffer);
+            }
+        }
+        flushStatistics(context);
+    }
+
+    // Shades the region from the hits in the G-buffer, without intersecting any primary ray
+    private void shadeRegion(FrameBuffer frameBuffer, GBuffer gBuffer, int startX, int startY, int endX, int endY) {
+        TraceContext context = traceContexts.get();
+        context.resetOccluderCache(lights.size());
+
+        for (int y = startY; y < endY; y++) {
+            for (int x = startX; x < endX; x++) {
+                int offset = frameBuffer.offset(x, y);
+                context.samples++;
+                if (gBuffer.load(y * width + x, context)) {
+                    // Shading only needs the direction of the primary ray
+                    primaryRay(x, y, context.ray);
+                    calculatePhongIllumination(sphereMaterials.get(context.hitIndex), context, frameBuffer.rgb, offset);
+                } else {
+                    clearSample(frameBuffer.rgb, offset);
+                }
+            }
+        }
+        flushStatistics(context);
+    }
+
+    // Re-samples the pixels of the region whose one-sample color stands out from a neighbour
+    private void refineRegion(FrameBuffer primary, FrameBuffer refined, int startX, int startY, int endX, int endY) {
+        TraceContext context = traceContexts.get();
+        context.resetOccluderCache(lights.size());
+
+        for (int y = startY; y < endY; y++) {
+            for (int x = startX; x < endX; x++) {
+                if (needsRefinement(primary, x, y)) {
+                    supersamplePixel(x, y, context, refined.rgb, refined.offset(x, y));
+                    context.refinedPixels++;
+                }
+            }
+        }
+        flushStatistics(context);
+    }
+
+    private boolean needsRefinement(FrameBuffer frame, int x, int y) {
+        int offset = frame.offset(x, y);
+        return (x > 0 && contrast(frame.rgb, offset, frame.offset(x - 1, y)) > aaThreshold)
+                || (x < width - 1 && contrast(frame.rgb, offset, frame.offset(x + 1, y)) > aaThreshold)
+                || (y > 0 && contrast(frame.rgb, offset, frame.offset(x, y - 1)) > aaThreshold)
+                || (y < height - 1 && contrast(frame.rgb, offset, frame.offset(x, y + 1)) > aaThreshold);
+    }
+
+    // Largest per-channel difference between two pixels, measured on displayable (clamped) values
+    private static float contrast(float[] rgb, int a, int b) {
+        float max = 0;
+        for (int channel = 0; channel < 3; channel++) {
+            max = Math.max(max, Math.abs(clamp(rgb[a + channel]) - clamp(rgb[b + channel])));
+        }
+        return max;
+    }
+
+    private static float clamp(float value) {
+        return Math.min(1.0f, Math.max(0.0f, value));
+    }
+
+    // Averages an aaGridSize x aaGridSize grid of samples spread evenly over the pixel
+    private void supersamplePixel(int x, int y, TraceContext context, float[] out, int offset) {
+        float[] sample = context.sample;
+        float r = 0, g = 0, b = 0;
+
+        for (int sy = 0; sy < aaGridSize; sy++) {
+            double sampleY = y + (sy + 0.5) / aaGridSize - 0.5;
+            for (int sx = 0; sx < aaGridSize; sx++) {
+                double sampleX = x + (sx + 0.5) / aaGridSize - 0.5;
+                traceSample(sampleX, sampleY, context, sample, 0);
+                r += clamp(sample[0]);
+                g += clamp(sample[1]);
+                b += clamp(sample[2]);
+            }
+        }
+
+        int samples = aaGridSize * aaGridSize;
+        context.samples += samples;
+        out[offset] = r / samples;
+        out[offset + 1] = g / samples;
+        out[offset + 2] = b / samples;
+    }
+
+    private void flushStatistics(TraceContext context) {
+        shadowRayCount.add(context.shadowRays);
+        shadowCacheHitCount.add(context.shadowCacheHits);
+        sampleCount.add(context.samples);
+        refinedPixelCount.add(context.refinedPixels);
+        metrics.add(context);
+        context.shadowRays = 0;
+        context.shadowCacheHits = 0;
+        context.samples = 0;
+        context.refinedPixels = 0;
+        context.primaryRays = 0;
+        context.primaryHits = 0;
+        context.sphereTests = 0;
+        context.boxTests = 0;
+        context.lightsPerHit.reset();
+    }
+
+    // Traces the primary ray of a single pixel and stores its color at out[offset..offset + 2].
+    // With a G-buffer the hit (or miss) is recorded there as well.
+    private void tracePixel(int x, int y, TraceContext context, float[] out, int offset, GBuffer gBuffer) {
+        context.samples++;
+        shadePixel(x, y, intersectPrimary(x, y, context), context, out, offset, gBuffer);
+    }
+
+    // Traces the pixels [startX, endX) of row y as packets of primary rays
+    private void tracePackets(int y, int startX, int endX, TraceContext context, FrameBuffer frameBuffer,
+                              GBuffer gBuffer) {
+        RayPacket packet = context.packet(packetTracer.lanes());
+        for (int packetX = startX; packetX < endX; packetX += packet.lanes) {
+            packet.count = Math.min(packet.lanes, endX - packetX);
+            for (int lane = 0; lane < packet.count; lane++) {
+                packet.setRay(lane, primaryRay(packetX + lane, y, context.ray));
+            }
+            packetTracer.intersect(bvh, packet, context);
+            context.primaryRays += packet.count;
+
+            for (int lane = 0; lane < packet.count; lane++) {
+                int x = packetX + lane;
+                int sphere = packet.sphere[lane];
+                boolean hit = sphere >= 0;
+                if (hit) {
+                    context.primaryHits++;
+                    context.hitSphere = sphere;
+                    context.hitIndex = bvh.getSphereIndex(sphere);
+                    completeHit(packet.getRay(lane, context.ray), packet.distance[lane], context);
+                }
+                context.samples++;
+                shadePixel(x, y, hit, context, frameBuffer.rgb, frameBuffer.offset(x, y), gBuffer);
+            }
+        }
+    }
+
+    // Colors a pixel whose primary ray has been intersected (see intersectPrimary for what the
+    // context holds on a hit) and records it in the G-buffer if one is given
+    private void shadePixel(int x, int y, boolean hit, TraceContext context, float[] out, int offset,
+                            GBuffer gBuffer) {
+        if (gBuffer != null) {
+            if (hit) {
+                gBuffer.store(y * width + x, context);
+            } else {
+                gBuffer.storeMiss(y * width + x);
+            }
+        }
+
+        if (hit) {
+            calculatePhongIllumination(sphereMaterials.get(context.hitIndex), context, out, offset);
+        } else {
+            clearSample(out, offset);
+        }
+    }
+
+    // Traces a primary ray through a (possibly fractional) pixel position
+    private void traceSample(double x, double y, TraceContext context, float[] out, int offset) {
+        if (intersectPrimary(x, y, context)) {
+            // Calculate color at intersection point using Phong model
+            calculatePhongIllumination(sphereMaterials.get(context.hitIndex), context, out, offset);
+        } else {
+            clearSample(out, offset);
+        }
+    }
+
+    private static void clearSample(float[] out, int offset) {
+        out[offset] = 0;
+        out[offset + 1] = 0;
+        out[offset + 2] = 0;
+    }
+
+    // Sets up the primary ray through a (possibly fractional) pixel position
+    private Ray primaryRay(double x, double y, Ray ray) {
+        if (camera != null) {
+            return camera.primaryRay(x, y, cameraOffset, ray);
+        }
+
+        // Convert pixel coordinates to view plane coordinates
+        double viewX = (x / width - 0.5) * VIEW_PLANE_WIDTH;
+        double viewY = (0.5 - y / height) * (VIEW_PLANE_WIDTH * height / width);
+
+        // Rays leave the view plane in front of the camera, along negative z-axis
+        return ray.set(viewX + cameraOffset.x, viewY + cameraOffset.y, CAMERA_Z - VIEW_PLANE_DISTANCE + cameraOffset.z,
+                0, 0, -1);
+    }
+
+    // Intersects the primary ray through a pixel position with the scene. On a hit the context
+    // holds the ray, the hit sphere (hitIndex), the hit point and the surface normal.
+    private boolean intersectPrimary(double x, double y, TraceContext context) {
+        Ray ray = primaryRay(x, y, context.ray);
+
+        context.primaryRays++;
+        double t = bvh.intersect(ray, context);
+        if (t <= 0) {
+            return false;
+        }
+
+        context.primaryHits++;
+        completeHit(ray, t, context);
+        return true;
+    }
+
+    // Fills in the hit point and normal for a hit at distance t on context.hitSphere
+    private void completeHit(Ray ray, double t, TraceContext context) {
+        // Calculate intersection point
+        ray.pointAt(t, context.hitPoint);
+
+        // Calculate surface normal at intersection point
+        Vector3 center = bvh.getCenter(context.hitSphere, context.hitCenter);
+        context.normal.setDifference(context.hitPoint, center).normalize();
+    }
+
+    // Shades context.hitPoint (with context.normal, seen along context.ray) for the material
+    // with the given index and stores the unclamped color at out[offset..offset + 2]
+    void calculatePhongIllumination(int material, TraceContext context, float[] out, int offset) {
+        Vector3 point = context.hitPoint;
+        Vector3 normal = context.normal;
+        double[] lightData = this.lightData;
+        int m = material * MATERIAL_STRIDE;
+        double diffuseR = materialData[m + 3], diffuseG = materialData[m + 4], diffuseB = materialData[m + 5];
+        double specularR = materialData[m + 6], specularG = materialData[m + 7], specularB = materialData[m + 8];
+        double glossiness = materialData[m + 9];
+
+        // Initial color is the self-luminance of the surface plus the ambient light contribution
+        float r = (float) materialData[m];
+        float g = (float) materialData[m + 1];
+        float b = (float) materialData[m + 2];
+
+        // Observer direction is opposite to ray direction
+        Vector3 observerDirection = context.observerDirection.set(context.ray.direction).multiply(-1).normalize();
+
+        // Process each light source, or only those listed for the point's grid cell when culling
+        LightGrid grid = lightCutoff >= 0 ? lightGrid : null;
+        int cell = grid != null ? grid.cellAt(point) : -1;
+        int first = cell >= 0 ? grid.start(cell) : 0;
+        int last = cell >= 0 ? grid.end(cell) : lightData.length / LIGHT_STRIDE;
+        int evaluatedLights = 0;
+        for (int n = first; n < last; n++) {
+            int i = cell >= 0 ? grid.light(n) : n;
+            int l = i * LIGHT_STRIDE;
+            double lightX = lightData[l], lightY = lightData[l + 1], lightZ = lightData[l + 2];
 
             // Calculate distance to light for attenuation
-            double distanceToLight = point.subtract(light.position).length();
+            double distanceToLight = context.toLight.set(point.x - lightX, point.y - lightY, point.z - lightZ).length();
+            if (grid != null && distanceToLight > grid.radius(i)) {
+                continue;
+            }
+            evaluatedLights++;
+
+            // Vector from intersection point to light
+            Vector3 lightDirection = context.lightDirection
+                    .set(lightX - point.x, lightY - point.y, lightZ - point.z).normalize();
 
             // Calculate light attenuation factor
-            double attenuation = calculateAttenuation(distanceToLight, light.c2, light.c1, light.c0);
+            double attenuation = calculateAttenuation(distanceToLight, lightData[l + 6], lightData[l + 7], lightData[l + 8]);
 
             // Diffuse reflection (Lambert's law)
             double diffuseFactor = Math.max(0, normal.dot(lightDirection));
 
             if (diffuseFactor > 0) {
+                // Skip lights hidden behind other spheres
+                if (shadows && isOccluded(i, distanceToLight, context)) {
+                    continue;
+                }
+
+                double intensityR = lightData[l + 3], intensityG = lightData[l + 4], intensityB = lightData[l + 5];
+
                 // Add diffuse component
-                r += attenuation * diffuseFactor * (light.intensity.getRed() / 255.0f) * (sphere.diffuse.getRed() / 255.0f);
-                g += attenuation * diffuseFactor * (light.intensity.getGreen() / 255.0f) * (sphere.diffuse.getGreen() / 255.0f);
-                b += attenuation * diffuseFactor * (light.intensity.getBlue() / 255.0f) * (sphere.diffuse.getBlue() / 255.0f);
+                double diffuse = attenuation * diffuseFactor;
+                r += diffuse * intensityR * diffuseR;
+                g += diffuse * intensityG * diffuseG;
+                b += diffuse * intensityB * diffuseB;
 
                 // Specular reflection (Phong model)
-                Vector3 reflectionVector = normal.multiply(2 * normal.dot(lightDirection)).subtract(lightDirection).normalize();
+                Vector3 reflectionVector = context.reflection.set(normal)
+                        .multiply(2 * normal.dot(lightDirection)).subtract(lightDirection).normalize();
 
                 double specularFactor = Math.max(0, reflectionVector.dot(observerDirection));
 
                 if (specularFactor > 0) {
                     // Apply glossiness (shininess)
-                    specularFactor = Math.pow(specularFactor, sphere.glossiness);
+                    double specular = attenuation * Math.pow(specularFactor, glossiness);
 
                     // Add specular component
-                    r += attenuation * specularFactor * (light.intensity.getRed() / 255.0f) * (sphere.specular.getRed() / 255.0f);
-                    g += attenuation * specularFactor * (light.intensity.getGreen() / 255.0f) * (sphere.specular.getGreen() / 255.0f);
-                    b += attenuation * specularFactor * (light.intensity.getBlue() / 255.0f) * (sphere.specular.getBlue() / 255.0f);
+                    r += specular * intensityR * specularR;
+                    g += specular * intensityG * specularG;
+                    b += specular * intensityB * specularB;
                 }
             }
         }
 
-        r = Math.min(1.0f, Math.max(0.0f, r));
-        g = Math.min(1.0f, Math.max(0.0f, g));
-        b = Math.min(1.0f, Math.max(0.0f, b));
+        context.lightsPerHit.record(evaluatedLights);
 
-        return new Color(r, g, b);
+        // Clamping happens in the frame buffer's quantize pass
+        out[offset] = r;
+        out[offset + 1] = g;
+        out[offset + 2] = b;
     }
 
-    private void displayImage(BufferedImage image) {
+    // Casts a shadow ray from context.hitPoint along context.lightDirection. The last sphere that
+    // blocked this light is tested first, since neighbouring pixels tend to share an occluder.
+    private boolean isOccluded(int lightIndex, double distanceToLight, TraceContext context) {
+        Vector3 point = context.hitPoint;
+        Vector3 normal = context.normal;
+        Vector3 direction = context.lightDirection;
+        Ray shadowRay = context.shadowRay.set(
+                point.x + normal.x * SHADOW_BIAS, point.y + normal.y * SHADOW_BIAS, point.z + normal.z * SHADOW_BIAS,
+                direction.x, direction.y, direction.z);
+        context.shadowRays++;
+
+        int cached = context.lastOccluder[lightIndex];
+        if (cached >= 0) {
+            context.sphereTests++;
+        }
+        if (cached >= 0 && bvh.occludedBy(cached, shadowRay, distanceToLight)) {
+            context.shadowCacheHits++;
+            return true;
+        }
+
+        int occluder = bvh.findOccluder(shadowRay, distanceToLight, context);
+        if (occluder >= 0) {
+            context.lastOccluder[lightIndex] = occluder;
+            return true;
+        }
+        return false;
+    }
+
+    private Canvas displayImage(BufferedImage image) {
         Frame frame = new Frame("Phong Raytracer Rendering");
         Canvas canvas = new Canvas() {
             @Override
@@ -381,20 +1355,82 @@ public class PhongRaytracer {
                 frame.dispose();
             }
         });
+        return canvas;
+    }
+
+    // Applies the render option at args[i] and returns the index of its last argument,
+    // or -1 if args[i] is not a render option
+    static int parseOption(PhongRaytracer raytracer, String[] args, int i) {
+        switch (args[i]) {
+            case "--threads":
+                raytracer.setThreadCount(Integer.parseInt(args[++i]));
+                return i;
+            case "--tile":
+                raytracer.setTileSize(Integer.parseInt(args[++i]));
+                return i;
+            case "--shadows":
+                raytracer.setShadows(true);
+                return i;
+            case "--headless":
+                raytracer.setHeadless(true);
+                return i;
+            case "--progressive":
+                raytracer.setProgressive(Integer.parseInt(args[++i]));
+                return i;
+            case "--aa":
+                raytracer.setAntialiasing(Double.parseDouble(args[++i]), raytracer.aaGridSize);
+                return i;
+            case "--packets":
+                raytracer.setPacketTracing(true);
+                return i;
+            case "--animation":
+                raytracer.setAnimation(args[++i]);
+                return i;
+            case "--cull-lights":
+                raytracer.setLightCulling(Double.parseDouble(args[++i]));
+                return i;
+            case "--metrics":
+                raytracer.setMetrics(true);
+                return i;
+            case "--aa-grid":
+                raytracer.setAntialiasing(raytracer.aaThreshold, Integer.parseInt(args[++i]));
+                return i;
+            default:
+                return -1;
+        }
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java PhongRaytracer <scene-file>");
+            System.out.println("Usage: java PhongRaytracer <scene-file> [--threads N] [--tile N] [--shadows] [--headless]"
+                    + " [--progressive block] [--aa threshold] [--aa-grid N] [--cull-lights steps]"
+                    + " [--animation file] [--packets] [--metrics]");
             System.exit(1);
         }
 
         PhongRaytracer raytracer = new PhongRaytracer();
-        if (raytracer.loadScene(args[0])) {
-            raytracer.render();
-        } else {
-            System.err.println("Failed to load scene from: " + args[0]);
+        try {
+            for (int i = 1; i < args.length; i++) {
+                int last = parseOption(raytracer, args, i);
+                if (last < 0) {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+                i = last;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Invalid options: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            if (raytracer.loadScene(args[0])) {
+                raytracer.render();
+            } else {
+                System.err.println("Failed to load scene from: " + args[0]);
+            }
+        } finally {
+            raytracer.close();
         }
     }
 }
-
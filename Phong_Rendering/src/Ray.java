@@ -0,0 +1,15 @@
+// Mutable ray: origin + t * direction
+class Ray {
+    final Vector3 origin = new Vector3();
+    final Vector3 direction = new Vector3();
+
+    public Ray set(double ox, double oy, double oz, double dx, double dy, double dz) {
+        origin.set(ox, oy, oz);
+        direction.set(dx, dy, dz);
+        return this;
+    }
+
+    public Vector3 pointAt(double t, Vector3 out) {
+        return out.setPointAt(origin, direction, t);
+    }
+}
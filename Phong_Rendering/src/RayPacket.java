@@ -0,0 +1,48 @@
+// Lane arrays for a packet of rays traced together (see PacketTracer). Lanes past count
+// repeat the last ray, so a partial packet can still be processed whole.
+class RayPacket {
+    final int lanes;
+    final double[] originX, originY, originZ;
+    final double[] dirX, dirY, dirZ;
+    // Results: distance to the closest hit (-1 on a miss) and its leaf-order sphere index (-1)
+    final double[] distance;
+    final int[] sphere;
+    int count;
+
+    public RayPacket(int lanes) {
+        this.lanes = lanes;
+        this.originX = new double[lanes];
+        this.originY = new double[lanes];
+        this.originZ = new double[lanes];
+        this.dirX = new double[lanes];
+        this.dirY = new double[lanes];
+        this.dirZ = new double[lanes];
+        this.distance = new double[lanes];
+        this.sphere = new int[lanes];
+    }
+
+    public void setRay(int lane, Ray ray) {
+        originX[lane] = ray.origin.x;
+        originY[lane] = ray.origin.y;
+        originZ[lane] = ray.origin.z;
+        dirX[lane] = ray.direction.x;
+        dirY[lane] = ray.direction.y;
+        dirZ[lane] = ray.direction.z;
+    }
+
+    public Ray getRay(int lane, Ray out) {
+        return out.set(originX[lane], originY[lane], originZ[lane], dirX[lane], dirY[lane], dirZ[lane]);
+    }
+
+    // Copies the last used ray into the unused lanes
+    public void fillUnusedLanes() {
+        for (int lane = count; lane < lanes; lane++) {
+            originX[lane] = originX[count - 1];
+            originY[lane] = originY[count - 1];
+            originZ[lane] = originZ[count - 1];
+            dirX[lane] = dirX[count - 1];
+            dirY[lane] = dirY[count - 1];
+            dirZ[lane] = dirZ[count - 1];
+        }
+    }
+}
@@ -0,0 +1,345 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Render farm coordinator: splits the frame (or every frame of an --animation) into tile jobs,
+// hands them to worker JVMs (RenderWorker) over their stdin/stdout pipes and assembles the
+// tiles into the PNGs. When a worker dies its job goes back to the queue and the worker is
+// restarted; a job that fails MAX_ATTEMPTS times, or running out of workers, fails the render.
+public class RenderFarm {
+    private static final int MAX_ATTEMPTS = 3;
+    // Restarts per worker slot before it is given up
+    private static final int MAX_RESTARTS = 3;
+    // Coordinator JVM options passed on to the workers, by prefix
+    private static final String[] WORKER_OPTIONS = {"-Xmx", "-Xms", "-Xss", "--add-modules", "--enable-preview"};
+
+    private static class Job {
+        final int id;
+        final int frame;
+        final int startX, startY, endX, endY;
+        int attempts;
+
+        Job(int id, int frame, int startX, int startY, int endX, int endY) {
+            this.id = id;
+            this.frame = frame;
+            this.startX = startX;
+            this.startY = startY;
+            this.endX = endX;
+            this.endY = endY;
+        }
+    }
+
+    // Pixels of one output image, written out once its last tile arrives
+    private static class Frame {
+        final String outputFile;
+        final BufferedImage image;
+        final int[] pixels;
+        int remainingTiles;
+
+        Frame(String outputFile, int width, int height, int tiles) {
+            this.outputFile = outputFile;
+            this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            this.remainingTiles = tiles;
+        }
+    }
+
+    private final List<String> workerCommand;
+    private final int width;
+    private final Frame[] frames;
+    private final BlockingQueue<Job> pending = new LinkedBlockingQueue<>();
+    private final AtomicInteger remainingJobs = new AtomicInteger();
+    private final AtomicInteger retriedJobs = new AtomicInteger();
+    private final AsyncImageWriter imageWriter = new AsyncImageWriter();
+    private volatile String failure;
+
+    private RenderFarm(List<String> workerCommand, int width, Frame[] frames) {
+        this.workerCommand = workerCommand;
+        this.width = width;
+        this.frames = frames;
+    }
+
+    // One worker process and the thread feeding it jobs
+    private class WorkerSlot implements Runnable {
+        private final int index;
+        // Fault injection for the first process of this slot only, -1 = off
+        private int crashAfter;
+        private Process process;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        WorkerSlot(int index, int crashAfter) {
+            this.index = index;
+            this.crashAfter = crashAfter;
+        }
+
+        private void start() throws IOException {
+            List<String> command = new ArrayList<>(workerCommand);
+            if (crashAfter >= 0) {
+                command.add(1, "-D" + RenderWorker.CRASH_AFTER_PROPERTY + "=" + crashAfter);
+                crashAfter = -1;
+            }
+            // Left null if the process cannot be started at all
+            process = null;
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            if (in.readInt() != RenderWorker.READY) {
+                throw new IOException("unexpected handshake");
+            }
+        }
+
+        @Override
+        public void run() {
+            int restarts = 0;
+            boolean running = false;
+
+            while (failure == null && remainingJobs.get() > 0) {
+                Job job = null;
+                try {
+                    if (!running) {
+                        start();
+                        running = true;
+                    }
+                    job = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (job != null) {
+                        render(job);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (IOException e) {
+                    System.err.printf("Worker %d failed%s: %s%n", index,
+                            job != null ? " on tile " + job.startX + "," + job.startY + " of frame " + job.frame : "",
+                            e.getMessage() != null ? e.getMessage() : e.toString());
+                    // A failed start counts as a restart like a crash does
+                    if (process != null) {
+                        process.destroyForcibly();
+                    }
+                    running = false;
+                    if (job != null) {
+                        retry(job);
+                    }
+                    if (++restarts > MAX_RESTARTS) {
+                        System.err.printf("Worker %d failed %d times, giving up on it%n", index, restarts);
+                        return;
+                    }
+                }
+            }
+
+            if (running) {
+                stop();
+            }
+        }
+
+        private void render(Job job) throws IOException {
+            out.writeInt(job.id);
+            out.writeInt(job.frame);
+            out.writeInt(job.startX);
+            out.writeInt(job.startY);
+            out.writeInt(job.endX);
+            out.writeInt(job.endY);
+            out.flush();
+
+            if (in.readInt() != job.id) {
+                throw new IOException("answer for the wrong job");
+            }
+            int tileWidth = job.endX - job.startX;
+            int[] rowPixels = new int[tileWidth];
+            Frame frame = frames[job.frame];
+            for (int y = job.startY; y < job.endY; y++) {
+                for (int i = 0; i < tileWidth; i++) {
+                    rowPixels[i] = in.readInt();
+                }
+                System.arraycopy(rowPixels, 0, frame.pixels, y * width + job.startX, tileWidth);
+            }
+            tileDone(frame);
+            remainingJobs.decrementAndGet();
+        }
+
+        private void stop() {
+            if (process == null) {
+                return;
+            }
+            try {
+                out.writeInt(RenderWorker.QUIT);
+                out.flush();
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (IOException e) {
+                // Already gone
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            process.destroyForcibly();
+        }
+    }
+
+    private void retry(Job job) {
+        job.attempts++;
+        if (job.attempts >= MAX_ATTEMPTS) {
+            failure = "tile " + job.startX + "," + job.startY + " of frame " + job.frame
+                    + " failed " + job.attempts + " times";
+            return;
+        }
+        retriedJobs.incrementAndGet();
+        pending.add(job);
+    }
+
+    private void tileDone(Frame frame) {
+        boolean complete;
+        synchronized (frame) {
+            complete = --frame.remainingTiles == 0;
+        }
+        if (complete) {
+            imageWriter.write(frame.image, frame.outputFile);
+        }
+    }
+
+    // Runs the jobs on workerCount workers, returns whether every tile was rendered
+    private boolean run(int workerCount, int crashAfter) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            Thread thread = new Thread(new WorkerSlot(i, i == 0 ? crashAfter : -1), "farm-worker-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        imageWriter.close();
+
+        if (failure == null && remainingJobs.get() > 0) {
+            failure = "all workers failed";
+        }
+        return failure == null;
+    }
+
+    private static boolean isWorkerOption(String option) {
+        for (String prefix : WORKER_OPTIONS) {
+            if (option.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Must be set before any AWT class initializes
+        System.setProperty("java.awt.headless", "true");
+
+        if (args.length < 1) {
+            System.out.println("Usage: java RenderFarm <scene-file> [--workers N] [--crash-worker-after N]"
+                    + " [PhongRaytracer options]");
+            System.exit(1);
+        }
+
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int crashAfter = -1;
+        PhongRaytracer raytracer = new PhongRaytracer();
+        raytracer.setHeadless(true);
+        List<String> workerArgs = new ArrayList<>();
+        workerArgs.add(new File(args[0]).getAbsolutePath());
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--workers")) {
+                    workerCount = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (args[i].equals("--crash-worker-after")) {
+                    crashAfter = Integer.parseInt(args[++i]);
+                } else {
+                    int last = PhongRaytracer.parseOption(raytracer, args, i);
+                    if (last < 0) {
+                        System.err.println("Unknown option: " + args[i]);
+                        System.exit(1);
+                    }
+                    for (int j = i; j <= last; j++) {
+                        workerArgs.add(args[j]);
+                    }
+                    i = last;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Invalid options: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // The coordinator only needs the frame size, output names and frame count
+        if (!raytracer.loadScene(args[0])) {
+            System.err.println("Failed to load scene from: " + args[0]);
+            System.exit(1);
+        }
+        Animation animation = null;
+        if (raytracer.getAnimationFile() != null) {
+            try {
+                animation = Animation.load(raytracer.getAnimationFile(), raytracer.getLightCount());
+            } catch (IOException e) {
+                System.err.println("Error loading animation: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        raytracer.close();
+
+        int width = raytracer.getWidth();
+        int height = raytracer.getHeight();
+        int tileSize = raytracer.getTileSize();
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        int frameCount = animation != null ? animation.getFrameCount() : 1;
+
+        // Workers run on the same JVM binary and class path as the coordinator, with its heap,
+        // stack and module options (not debugger, agent or JMX ones: those would all open the
+        // same port)
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (isWorkerOption(option)) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("RenderWorker");
+        command.addAll(workerArgs);
+
+        Frame[] frames = new Frame[frameCount];
+        for (int frame = 0; frame < frameCount; frame++) {
+            String outputFile = animation != null ? animation.getOutputFile(frame) : raytracer.getOutputFileName();
+            frames[frame] = new Frame(outputFile, width, height, tilesX * tilesY);
+        }
+        RenderFarm farm = new RenderFarm(command, width, frames);
+
+        int jobId = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            for (int ty = 0; ty < tilesY; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int startX = tx * tileSize;
+                    int startY = ty * tileSize;
+                    farm.pending.add(new Job(jobId++, frame, startX, startY,
+                            Math.min(startX + tileSize, width), Math.min(startY + tileSize, height)));
+                }
+            }
+        }
+        farm.remainingJobs.set(jobId);
+
+        long start = System.nanoTime();
+        boolean success = farm.run(workerCount, crashAfter);
+        System.out.printf("Render farm: %d tile(s) of %d frame(s) on %d worker(s) in %.1f ms, %d retried%n",
+                jobId - farm.remainingJobs.get(), frameCount, workerCount, (System.nanoTime() - start) / 1e6,
+                farm.retriedJobs.get());
+        if (!success) {
+            System.err.println("Render failed: " + farm.failure);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Where the render time of a PhongRaytracer goes: rays, intersection tests, primary hits,
+// lights shaded per hit, time per tile and trace vs. PNG encode time, totalled over its
+// lifetime. Tracing threads count into their TraceContext and add(...) merges that after
+// each tile. Readable over JMX and as a JSON summary (see writeJson).
+public class RenderMetrics implements RenderMetricsMBean {
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder primaryRays = new LongAdder();
+    private final LongAdder shadowRays = new LongAdder();
+    private final LongAdder sphereTests = new LongAdder();
+    private final LongAdder boxTests = new LongAdder();
+    private final LongAdder primaryHits = new LongAdder();
+    private final LongAdder traceNanos = new LongAdder();
+    // Quantizing the frame buffer plus PNG compression (added to by the AsyncImageWriter)
+    final LongAdder encodeNanos = new LongAdder();
+    // Guarded by their own monitors
+    private final Histogram lightsPerHit = new Histogram();
+    private final Histogram tileMicros = new Histogram();
+
+    private ObjectName objectName;
+
+    // Merges the counters a thread collected in its context (flushStatistics clears them)
+    public void add(TraceContext context) {
+        primaryRays.add(context.primaryRays);
+        shadowRays.add(context.shadowRays);
+        sphereTests.add(context.sphereTests);
+        boxTests.add(context.boxTests);
+        primaryHits.add(context.primaryHits);
+        synchronized (lightsPerHit) {
+            lightsPerHit.add(context.lightsPerHit);
+        }
+    }
+
+    public void recordTile(long nanos) {
+        synchronized (tileMicros) {
+            tileMicros.record(nanos / 1000);
+        }
+    }
+
+    public void recordFrame(long traceNanos) {
+        frames.increment();
+        this.traceNanos.add(traceNanos);
+    }
+
+    // Starts counting afresh, e.g. for the next scene of a batch
+    public void reset() {
+        frames.reset();
+        primaryRays.reset();
+        shadowRays.reset();
+        sphereTests.reset();
+        boxTests.reset();
+        primaryHits.reset();
+        traceNanos.reset();
+        encodeNanos.reset();
+        synchronized (lightsPerHit) {
+            lightsPerHit.reset();
+        }
+        synchronized (tileMicros) {
+            tileMicros.reset();
+        }
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frames.sum();
+    }
+
+    @Override
+    public long getPrimaryRays() {
+        return primaryRays.sum();
+    }
+
+    @Override
+    public long getShadowRays() {
+        return shadowRays.sum();
+    }
+
+    @Override
+    public long getRaysCast() {
+        return getPrimaryRays() + getShadowRays();
+    }
+
+    @Override
+    public long getSphereTests() {
+        return sphereTests.sum();
+    }
+
+    @Override
+    public long getBoxTests() {
+        return boxTests.sum();
+    }
+
+    @Override
+    public long getPrimaryHits() {
+        return primaryHits.sum();
+    }
+
+    @Override
+    public long getPrimaryMisses() {
+        return getPrimaryRays() - getPrimaryHits();
+    }
+
+    @Override
+    public double getMeanLightsPerHit() {
+        synchronized (lightsPerHit) {
+            return lightsPerHit.getMean();
+        }
+    }
+
+    @Override
+    public long getMaxLightsPerHit() {
+        synchronized (lightsPerHit) {
+            return lightsPerHit.getMax();
+        }
+    }
+
+    @Override
+    public long getTileCount() {
+        synchronized (tileMicros) {
+            return tileMicros.getCount();
+        }
+    }
+
+    @Override
+    public double getMeanTileMillis() {
+        synchronized (tileMicros) {
+            return tileMicros.getMean() / 1000;
+        }
+    }
+
+    @Override
+    public double getMaxTileMillis() {
+        synchronized (tileMicros) {
+            return tileMicros.getMax() / 1000.0;
+        }
+    }
+
+    @Override
+    public double getTraceMillis() {
+        return traceNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getEncodeMillis() {
+        return encodeNanos.sum() / 1e6;
+    }
+
+    // Registers with the platform MBean server as PhongRaytracer:type=RenderMetrics,instance=N
+    public void register() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("PhongRaytracer:type=RenderMetrics,instance=" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            System.err.println("Error registering render metrics: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            System.err.println("Error unregistering render metrics: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    // Writes the totals as one JSON object
+    public void writeJson(String fileName, String outputFileName) throws IOException {
+        String lightsJson;
+        String tilesJson;
+        synchronized (lightsPerHit) {
+            lightsJson = lightsPerHit.toJson();
+        }
+        synchronized (tileMicros) {
+            tilesJson = tileMicros.toJson();
+        }
+
+        try (Writer out = new FileWriter(fileName)) {
+            out.write("{\n");
+            out.write("  \"output\": \"" + escape(outputFileName) + "\",\n");
+            out.write("  \"frames\": " + getFrameCount() + ",\n");
+            out.write(String.format(Locale.ROOT, "  \"traceMillis\": %.3f,\n", getTraceMillis()));
+            out.write(String.format(Locale.ROOT, "  \"encodeMillis\": %.3f,\n", getEncodeMillis()));
+            out.write("  \"rays\": {\"primary\": " + getPrimaryRays() + ", \"shadow\": " + getShadowRays()
+                    + ", \"total\": " + getRaysCast() + "},\n");
+            out.write("  \"intersectionTests\": {\"sphere\": " + getSphereTests() + ", \"box\": " + getBoxTests() + "},\n");
+            out.write("  \"primaryHits\": " + getPrimaryHits() + ",\n");
+            out.write("  \"primaryMisses\": " + getPrimaryMisses() + ",\n");
+            out.write("  \"lightsPerHit\": " + lightsJson + ",\n");
+            out.write("  \"tileMicros\": " + tilesJson + "\n");
+            out.write("}\n");
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,33 @@
+// JMX view of RenderMetrics (registered by PhongRaytracer with --metrics). All values are
+// totals since the raytracer was created.
+public interface RenderMetricsMBean {
+    long getFrameCount();
+
+    long getPrimaryRays();
+
+    long getShadowRays();
+
+    long getRaysCast();
+
+    long getSphereTests();
+
+    long getBoxTests();
+
+    long getPrimaryHits();
+
+    long getPrimaryMisses();
+
+    double getMeanLightsPerHit();
+
+    long getMaxLightsPerHit();
+
+    long getTileCount();
+
+    double getMeanTileMillis();
+
+    double getMaxTileMillis();
+
+    double getTraceMillis();
+
+    double getEncodeMillis();
+}
@@ -0,0 +1,93 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Render farm worker, started by RenderFarm with the scene file and raytracer options.
+// Loads the scene once, then renders the tile jobs read from stdin and answers each on
+// stdout. All ints are big-endian (Data streams):
+//   worker -> coordinator, once loaded: READY
+//   coordinator -> worker, per job:     job id, frame, startX, startY, endX, endY (QUIT as job id ends)
+//   worker -> coordinator, per job:     job id, then the tile's packed RGB pixels row by row
+public class RenderWorker {
+    static final int READY = 0x57524B52; // "WRKR"
+    static final int QUIT = -1;
+
+    // Fault injection for testing the coordinator's retries: exit without answering
+    // once this many jobs are done
+    static final String CRASH_AFTER_PROPERTY = "phong.worker.crashAfter";
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        // stdout carries the protocol, so anything the raytracer prints goes to stderr
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+
+        PhongRaytracer raytracer = new PhongRaytracer();
+        raytracer.setHeadless(true);
+        for (int i = 1; i < args.length; i++) {
+            int last = PhongRaytracer.parseOption(raytracer, args, i);
+            if (last < 0) {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+            i = last;
+        }
+
+        if (!raytracer.loadScene(args[0])) {
+            System.err.println("Failed to load scene from: " + args[0]);
+            System.exit(1);
+        }
+        Animation animation = raytracer.getAnimationFile() != null
+                ? Animation.load(raytracer.getAnimationFile(), raytracer.getLightCount()) : null;
+
+        out.writeInt(READY);
+        out.flush();
+
+        int crashAfter = Integer.getInteger(CRASH_AFTER_PROPERTY, -1);
+        int jobsDone = 0;
+        int currentFrame = -1;
+        try {
+            while (true) {
+                int jobId = in.readInt();
+                if (jobId == QUIT) {
+                    break;
+                }
+                int frame = in.readInt();
+                int startX = in.readInt();
+                int startY = in.readInt();
+                int endX = in.readInt();
+                int endY = in.readInt();
+
+                if (jobsDone == crashAfter) {
+                    System.err.println("Worker crashing on purpose after " + jobsDone + " jobs");
+                    Runtime.getRuntime().halt(3);
+                }
+                if (animation != null && frame != currentFrame) {
+                    raytracer.applyAnimationFrame(animation, frame);
+                    currentFrame = frame;
+                }
+
+                FrameBuffer tile = raytracer.renderTile(startX, startY, endX, endY);
+                out.writeInt(jobId);
+                for (int y = startY; y < endY; y++) {
+                    for (int x = startX; x < endX; x++) {
+                        out.writeInt(tile.toRGB(tile.offset(x, y)));
+                    }
+                }
+                out.flush();
+                jobsDone++;
+            }
+        } catch (EOFException e) {
+            // Coordinator went away
+        } finally {
+            raytracer.close();
+        }
+    }
+}
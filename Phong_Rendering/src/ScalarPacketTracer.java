@@ -0,0 +1,22 @@
+// Fallback packet tracer: one BVH traversal per ray
+class ScalarPacketTracer implements PacketTracer {
+    private static final int LANES = 8;
+
+    @Override
+    public int lanes() {
+        return LANES;
+    }
+
+    @Override
+    public void intersect(BVH bvh, RayPacket packet, TraceContext context) {
+        for (int lane = 0; lane < packet.count; lane++) {
+            packet.distance[lane] = bvh.intersect(packet.getRay(lane, context.ray), context);
+            packet.sphere[lane] = context.hitSphere;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.IOException;
+
+// Converts a text scene into the compiled binary format, which PhongRaytracer.loadScene
+// maps into memory instead of parsing (the file type is detected automatically).
+public class SceneCompiler {
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java SceneCompiler <scene-file> <compiled-scene-file>");
+            System.exit(1);
+        }
+
+        PhongRaytracer raytracer = new PhongRaytracer();
+        try {
+            if (!raytracer.loadScene(args[0])) {
+                System.err.println("Failed to load scene from: " + args[0]);
+                System.exit(1);
+            }
+            raytracer.saveCompiledScene(args[1]);
+            System.out.println("Compiled scene saved to " + args[1]);
+        } catch (IOException e) {
+            System.err.println("Error saving compiled scene: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            raytracer.close();
+        }
+    }
+}
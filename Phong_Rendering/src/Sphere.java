@@ -0,0 +1,43 @@
+class Sphere {
+    Vector3 center;
+    double radius;
+    Material material;
+
+    public Sphere(Vector3 center, double radius, Material material) {
+        this.center = center;
+        this.radius = radius;
+        this.material = material;
+    }
+
+    // Check if a ray intersects with this sphere
+    public double intersect(Ray ray) {
+        Vector3 origin = ray.origin;
+        Vector3 direction = ray.direction;
+        return intersect(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z,
+                center.x, center.y, center.z, radius);
+    }
+
+    // Ray/sphere test on plain doubles, shared with the BVH leaves
+    static double intersect(double originX, double originY, double originZ,
+                            double dirX, double dirY, double dirZ,
+                            double centerX, double centerY, double centerZ, double radius) {
+        double ocX = originX - centerX;
+        double ocY = originY - centerY;
+        double ocZ = originZ - centerZ;
+
+        double a = dirX * dirX + dirY * dirY + dirZ * dirZ;
+        double b = 2.0 * (ocX * dirX + ocY * dirY + ocZ * dirZ);
+        double c = (ocX * ocX + ocY * ocY + ocZ * ocZ) - radius * radius;
+        double discriminant = b * b - 4 * a * c;
+
+        if (discriminant < 0) {
+            return -1.0; // No intersection
+        } else {
+            double t = (-b - Math.sqrt(discriminant)) / (2.0 * a);
+            if (t > 0) {
+                return t; // Return the distance to intersection
+            }
+            return -1.0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+// Per-thread scratch space for tracing and shading. One instance is reused for
+// every pixel a thread renders, so the hot path does not allocate.
+class TraceContext {
+    final Ray ray = new Ray();
+    final Vector3 hitPoint = new Vector3();
+    final Vector3 hitCenter = new Vector3();
+    final Vector3 normal = new Vector3();
+    final Vector3 observerDirection = new Vector3();
+    final Vector3 lightDirection = new Vector3();
+    final Vector3 toLight = new Vector3();
+    final Vector3 reflection = new Vector3();
+
+    final Ray shadowRay = new Ray();
+
+    // Scene index and leaf-order index of the sphere found by the last BVH query
+    int hitIndex = -1;
+    int hitSphere = -1;
+
+    // Last occluder found for each light (BVH leaf-order index, -1 if none)
+    int[] lastOccluder = new int[0];
+
+    // One anti-aliasing sample (r, g, b)
+    final float[] sample = new float[3];
+
+    // Primary rays of the current packet, when tracing in packets
+    private RayPacket packet;
+
+    // Statistics, flushed into the raytracer totals after each tile
+    long shadowRays;
+    long shadowCacheHits;
+    long samples;
+    long refinedPixels;
+    long primaryRays;
+    long primaryHits;
+    long sphereTests;
+    long boxTests;
+    final Histogram lightsPerHit = new Histogram();
+
+    // BVH traversal stack (node index and entry distance per slot)
+    private int[] traversalNodes = new int[64];
+    double[] traversalEntries = new double[64];
+
+    void resetOccluderCache(int lightCount) {
+        if (lastOccluder.length != lightCount) {
+            lastOccluder = new int[lightCount];
+        }
+        Arrays.fill(lastOccluder, -1);
+    }
+
+    RayPacket packet(int lanes) {
+        if (packet == null || packet.lanes != lanes) {
+            packet = new RayPacket(lanes);
+        }
+        return packet;
+    }
+
+    // Returns a node stack deep enough for a tree of the given depth
+    int[] traversalStack(int depth) {
+        if (traversalNodes.length <= depth) {
+            traversalNodes = new int[depth + 1];
+            traversalEntries = new double[depth + 1];
+        }
+        return traversalNodes;
+    }
+}
@@ -0,0 +1,72 @@
+// Mutable 3D vector. Every operation writes into this instance (or into an explicit
+// output vector) and returns it, so the per-pixel code never allocates.
+class Vector3 {
+    double x, y, z;
+
+    public Vector3() {
+    }
+
+    public Vector3(double x, double y, double z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public Vector3 set(double x, double y, double z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    public Vector3 set(Vector3 v) {
+        return set(v.x, v.y, v.z);
+    }
+
+    public Vector3 add(Vector3 v) {
+        x += v.x;
+        y += v.y;
+        z += v.z;
+        return this;
+    }
+
+    public Vector3 subtract(Vector3 v) {
+        x -= v.x;
+        y -= v.y;
+        z -= v.z;
+        return this;
+    }
+
+    public Vector3 multiply(double scalar) {
+        x *= scalar;
+        y *= scalar;
+        z *= scalar;
+        return this;
+    }
+
+    // this = a - b
+    public Vector3 setDifference(Vector3 a, Vector3 b) {
+        return set(a.x - b.x, a.y - b.y, a.z - b.z);
+    }
+
+    // this = origin + direction * t
+    public Vector3 setPointAt(Vector3 origin, Vector3 direction, double t) {
+        return set(origin.x + direction.x * t, origin.y + direction.y * t, origin.z + direction.z * t);
+    }
+
+    public double dot(Vector3 v) {
+        return x * v.x + y * v.y + z * v.z;
+    }
+
+    public double length() {
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+
+    public Vector3 normalize() {
+        double len = length();
+        if (len > 0) {
+            return set(x / len, y / len, z / len);
+        }
+        return set(0, 0, 0);
+    }
+}
@@ -0,0 +1,208 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+// SIMD packet tracer: one lane per ray, with the widest double vectors the CPU has (4 with
+// AVX2, 8 with AVX-512). The packet walks the BVH together; a node is entered while any lane
+// could still find a closer hit there, and each leaf sphere is tested against all lanes at
+// once. Lane math repeats Sphere.intersect operation for operation (no fused multiply-add),
+// so distances are bit-identical to the scalar path.
+//
+// Needs the incubator module at compile and run time, e.g. from Phong_Rendering/:
+//   javac -d out src/*.java
+//   javac --add-modules jdk.incubator.vector -cp out -d out vector/*.java
+//   java --add-modules jdk.incubator.vector -cp out PhongRaytracer <scene-file> --packets
+class VectorPacketTracer implements PacketTracer {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final DoubleVector ZERO = DoubleVector.zero(SPECIES);
+    private static final DoubleVector ONE = DoubleVector.broadcast(SPECIES, 1.0);
+    private static final DoubleVector POSITIVE_INFINITY = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+    private static final DoubleVector NEGATIVE_INFINITY = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+
+    @Override
+    public int lanes() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public String name() {
+        return "vector x" + SPECIES.length();
+    }
+
+    @Override
+    public void intersect(BVH bvh, RayPacket packet, TraceContext context) {
+        packet.fillUnusedLanes();
+        DoubleVector originX = DoubleVector.fromArray(SPECIES, packet.originX, 0);
+        DoubleVector originY = DoubleVector.fromArray(SPECIES, packet.originY, 0);
+        DoubleVector originZ = DoubleVector.fromArray(SPECIES, packet.originZ, 0);
+        DoubleVector dirX = DoubleVector.fromArray(SPECIES, packet.dirX, 0);
+        DoubleVector dirY = DoubleVector.fromArray(SPECIES, packet.dirY, 0);
+        DoubleVector dirZ = DoubleVector.fromArray(SPECIES, packet.dirZ, 0);
+        DoubleVector invX = ONE.div(dirX);
+        DoubleVector invY = ONE.div(dirY);
+        DoubleVector invZ = ONE.div(dirZ);
+        // Lanes running parallel to an axis (all of them for x and y with the default camera)
+        VectorMask<Double> parallelX = dirX.compare(VectorOperators.EQ, 0);
+        VectorMask<Double> parallelY = dirY.compare(VectorOperators.EQ, 0);
+        VectorMask<Double> parallelZ = dirZ.compare(VectorOperators.EQ, 0);
+
+        // Quadratic coefficient of the ray/sphere test, the same for every sphere
+        DoubleVector a = dirX.mul(dirX).add(dirY.mul(dirY)).add(dirZ.mul(dirZ));
+        DoubleVector fourA = a.mul(4.0);
+        DoubleVector twoA = a.mul(2.0);
+
+        DoubleVector closest = POSITIVE_INFINITY;
+        DoubleVector closestSphere = DoubleVector.broadcast(SPECIES, -1);
+        // Farthest closest hit over all lanes, nodes entered beyond it can be skipped
+        double farthestClosest = Double.POSITIVE_INFINITY;
+
+        DoubleBuffer bounds = bvh.nodeBounds;
+        IntBuffer nodeData = bvh.nodeData;
+        DoubleBuffer spheres = bvh.spheres;
+        int[] stack = context.traversalStack(bvh.getDepth());
+        double[] stackEntries = context.traversalEntries;
+        int stackSize = 0;
+
+        if (bvh.getNodeCount() > 0) {
+            context.boxTests += packet.count;
+            double rootEntry = nearestEntry(entryDistance(bounds, 0, originX, originY, originZ,
+                    invX, invY, invZ, parallelX, parallelY, parallelZ), closest);
+            if (rootEntry < Double.POSITIVE_INFINITY) {
+                stack[stackSize] = 0;
+                stackEntries[stackSize++] = rootEntry;
+            }
+        }
+
+        while (stackSize > 0) {
+            stackSize--;
+            // Skip the node if no lane's closest hit lies beyond its nearest entry
+            if (stackEntries[stackSize] >= farthestClosest) {
+                continue;
+            }
+            int node = stack[stackSize];
+            int count = nodeData.get(node * 2 + 1);
+
+            if (count > 0) {
+                int first = nodeData.get(node * 2);
+                context.sphereTests += (long) count * packet.count;
+                boolean improved = false;
+                for (int i = first; i < first + count; i++) {
+                    int offset = i * 4;
+                    double radius = spheres.get(offset + 3);
+                    DoubleVector ocX = originX.sub(spheres.get(offset));
+                    DoubleVector ocY = originY.sub(spheres.get(offset + 1));
+                    DoubleVector ocZ = originZ.sub(spheres.get(offset + 2));
+
+                    DoubleVector b = ocX.mul(dirX).add(ocY.mul(dirY)).add(ocZ.mul(dirZ)).mul(2.0);
+                    DoubleVector c = ocX.mul(ocX).add(ocY.mul(ocY)).add(ocZ.mul(ocZ)).sub(radius * radius);
+                    DoubleVector discriminant = b.mul(b).sub(fourA.mul(c));
+                    VectorMask<Double> hit = discriminant.compare(VectorOperators.GE, 0);
+                    if (!hit.anyTrue()) {
+                        continue;
+                    }
+
+                    DoubleVector t = b.neg().sub(discriminant.sqrt()).div(twoA);
+                    hit = hit.and(t.compare(VectorOperators.GT, 0)).and(t.compare(VectorOperators.LT, closest));
+                    closest = closest.blend(t, hit);
+                    closestSphere = closestSphere.blend(i, hit);
+                    improved = true;
+                }
+                if (improved) {
+                    farthestClosest = closest.reduceLanes(VectorOperators.MAX);
+                }
+            } else {
+                int left = nodeData.get(node * 2);
+                int right = left + 1;
+                double leftEntry = nearestEntry(entryDistance(bounds, left, originX, originY, originZ,
+                        invX, invY, invZ, parallelX, parallelY, parallelZ), closest);
+                double rightEntry = nearestEntry(entryDistance(bounds, right, originX, originY, originZ,
+                        invX, invY, invZ, parallelX, parallelY, parallelZ), closest);
+                context.boxTests += 2L * packet.count;
+
+                // Push the farther child first so the nearer one is visited next
+                if (leftEntry > rightEntry) {
+                    int swapNode = left;
+                    left = right;
+                    right = swapNode;
+                    double swapEntry = leftEntry;
+                    leftEntry = rightEntry;
+                    rightEntry = swapEntry;
+                }
+                if (rightEntry < Double.POSITIVE_INFINITY) {
+                    stack[stackSize] = right;
+                    stackEntries[stackSize++] = rightEntry;
+                }
+                if (leftEntry < Double.POSITIVE_INFINITY) {
+                    stack[stackSize] = left;
+                    stackEntries[stackSize++] = leftEntry;
+                }
+            }
+        }
+
+        closest.blend(-1.0, closest.compare(VectorOperators.EQ, Double.POSITIVE_INFINITY)).intoArray(packet.distance, 0);
+        for (int lane = 0; lane < packet.lanes; lane++) {
+            packet.sphere[lane] = (int) closestSphere.lane(lane);
+        }
+    }
+
+    // Smallest entry distance among the lanes that could still improve their closest hit
+    private static double nearestEntry(DoubleVector entry, DoubleVector closest) {
+        return entry.blend(POSITIVE_INFINITY, entry.compare(VectorOperators.GE, closest))
+                .reduceLanes(VectorOperators.MIN);
+    }
+
+    // Per-lane distance at which the ray enters the node box (clamped to 0), +infinity on a miss
+    private static DoubleVector entryDistance(DoubleBuffer bounds, int node,
+                                              DoubleVector originX, DoubleVector originY, DoubleVector originZ,
+                                              DoubleVector invX, DoubleVector invY, DoubleVector invZ,
+                                              VectorMask<Double> parallelX, VectorMask<Double> parallelY,
+                                              VectorMask<Double> parallelZ) {
+        int offset = node * 6;
+        DoubleVector near = ZERO;
+        DoubleVector far = POSITIVE_INFINITY;
+
+        double min = bounds.get(offset), max = bounds.get(offset + 3);
+        DoubleVector t1 = originX.broadcast(min).sub(originX).mul(invX);
+        DoubleVector t2 = originX.broadcast(max).sub(originX).mul(invX);
+        near = near.max(slabEntry(t1, t2, parallelX));
+        far = far.min(slabExit(t1, t2, originX, min, max, parallelX));
+
+        min = bounds.get(offset + 1);
+        max = bounds.get(offset + 4);
+        t1 = originY.broadcast(min).sub(originY).mul(invY);
+        t2 = originY.broadcast(max).sub(originY).mul(invY);
+        near = near.max(slabEntry(t1, t2, parallelY));
+        far = far.min(slabExit(t1, t2, originY, min, max, parallelY));
+
+        min = bounds.get(offset + 2);
+        max = bounds.get(offset + 5);
+        t1 = originZ.broadcast(min).sub(originZ).mul(invZ);
+        t2 = originZ.broadcast(max).sub(originZ).mul(invZ);
+        near = near.max(slabEntry(t1, t2, parallelZ));
+        far = far.min(slabExit(t1, t2, originZ, min, max, parallelZ));
+
+        return near.blend(POSITIVE_INFINITY, near.compare(VectorOperators.GT, far));
+    }
+
+    // Lanes running parallel to a slab (whose t1, t2 are infinite or NaN) only need a
+    // containment check: inside the slab their interval is unbounded, outside it is empty.
+    private static DoubleVector slabEntry(DoubleVector t1, DoubleVector t2, VectorMask<Double> parallel) {
+        DoubleVector entry = t1.min(t2);
+        return parallel.anyTrue() ? entry.blend(NEGATIVE_INFINITY, parallel) : entry;
+    }
+
+    private static DoubleVector slabExit(DoubleVector t1, DoubleVector t2, DoubleVector origin, double min, double max,
+                                         VectorMask<Double> parallel) {
+        DoubleVector exit = t1.max(t2);
+        if (!parallel.anyTrue()) {
+            return exit;
+        }
+        VectorMask<Double> outside = origin.compare(VectorOperators.LT, min).or(origin.compare(VectorOperators.GT, max));
+        return exit.blend(POSITIVE_INFINITY, parallel).blend(NEGATIVE_INFINITY, parallel.and(outside));
+    }
+}